@@ -0,0 +1,33 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+
+/**
+ *
+ * Sends a short job to the local worker when it has a free slot, or when the
+ * expected local finish time (queueing behind the jobs already there, then
+ * running at the observed local latency) is no later than the observed FaaS
+ * latency plus the slack of the job. The slack is how far the upward rank of
+ * the job is below the current critical path, so critical jobs go to the
+ * faster side and jobs off the critical path fill the local worker.
+ *
+ */
+
+public class AdaptiveDispatchPolicy extends DispatchPolicy
+{
+	public AdaptiveDispatchPolicy(Properties prop)
+	{
+		super(prop);
+	}
+
+	public boolean runLocally(WorkflowJob job, float criticalPath)
+	{
+		if (freeSlots() > 0)
+		{
+			return true;
+		}
+		double local = (1.0 + (double) (queueDepth() + 1) / localSlots) * localLatency;
+		double slack = Math.max(0, criticalPath - job.rank);
+		return local <= faasLatency + slack;
+	}
+}
@@ -0,0 +1,219 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.kinesis.*;
+import com.amazonaws.services.sqs.*;
+import com.amazonaws.services.sqs.model.*;
+import net.qyjohn.dewev3.worker.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * The AWS transport. Jobs for the Lambda functions go to the jobStream (Kinesis),
+ * jobs for the local worker to the longQueue (SQS), both through the batching
+ * JobDispatcher. ACKs are long polled from the ackQueue (SQS). Workflows are
+ * loaded from S3, and a LambdaLocalWorkerV2 serves the longQueue.
+ *
+ */
+
+public class AwsJobTransport implements JobTransport
+{
+	public AmazonKinesisAsyncClient kinesisClient = new AmazonKinesisAsyncClient();
+	public AmazonSQSAsyncClient sqsClient = new AmazonSQSAsyncClient();
+	public String jobStream, longQueue, ackQueue, tempDir, cacheDir;
+	boolean cleanUp, localExec;
+	int ackReceivers, ackWait;
+	volatile boolean running = true;
+
+	JobDispatcher dispatcher;
+	LambdaLocalWorkerV2 worker;
+	AckHandler handler;
+	final static Logger logger = Logger.getLogger(AwsJobTransport.class);
+
+	public AwsJobTransport(Properties prop)
+	{
+		try
+		{
+			jobStream = prop.getProperty("jobStream");
+			longQueue = prop.getProperty("longQueue");
+			ackQueue  = prop.getProperty("ackQueue");
+			cacheDir  = prop.getProperty("cacheDir");	// compiled workflow cache, disabled if not set
+			cleanUp   = Boolean.parseBoolean(prop.getProperty("cleanUp"));
+			localExec = Boolean.parseBoolean(prop.getProperty("localExec"));
+			ackReceivers = Integer.parseInt(prop.getProperty("ackReceivers", "4"));
+			ackWait      = Integer.parseInt(prop.getProperty("ackWait", "20"));	// long polling, in seconds
+			long dispatchWindow = Long.parseLong(prop.getProperty("dispatchWindow", "20"));
+			int dispatchInFlight = Integer.parseInt(prop.getProperty("dispatchInFlight", "16"));
+			dispatcher = new JobDispatcher(kinesisClient, sqsClient, jobStream, longQueue, dispatchWindow, dispatchInFlight);
+			dispatcher.start();
+
+			// House keeping
+			purgeQueue();
+
+			// Run one instance of the DeweWorker in the background, shared by all the workflows
+			tempDir = "/tmp/" + UUID.randomUUID().toString();
+			Process p = Runtime.getRuntime().exec("mkdir -p " + tempDir);
+			p.waitFor();
+			worker = new LambdaLocalWorkerV2(tempDir);
+			worker.start();
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+
+
+	public Workflow loadWorkflow(String uuid, String bucket, String prefix)
+	{
+		return new LambdaWorkflow(uuid, bucket, prefix, localExec, ackQueue, cacheDir);
+	}
+
+	public boolean supportsBatches()
+	{
+		return true;
+	}
+
+	public ObjectStore objectStore(Workflow workflow)
+	{
+		return new S3ObjectStore(((LambdaWorkflow) workflow).client, workflow.bucket);
+	}
+
+	public void publishJob(WorkflowJob job, String jobXML, String partitionKey)
+	{
+		dispatcher.sendToStream(jobXML, partitionKey);
+	}
+
+	public void publishLongJob(WorkflowJob job, String jobXML)
+	{
+		dispatcher.sendToQueue(jobXML);
+	}
+
+	public void receiveAcks(AckHandler handler)
+	{
+		this.handler = handler;
+		for (int i = 0; i < ackReceivers; i++)
+		{
+			new AckPuller().start();
+		}
+	}
+
+	public void completed(Workflow workflow)
+	{
+		worker.completed(workflow.uuid);
+	}
+
+
+	public void shutdown()
+	{
+		running = false;
+		dispatcher.shutdown();
+		dispatcher.report();
+		worker.setAsCompleted();
+
+		// delete the temp foler
+		if (cleanUp)
+		{
+			try
+			{
+				Process p = Runtime.getRuntime().exec("rm -Rf " + tempDir);
+				p.waitFor();
+			} catch (Exception e)
+			{
+				System.out.println(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 * Long polls the ackQueue for up to 10 ACKs at a time, hands them to the
+	 * handler and removes them with one asynchronous DeleteMessageBatch call,
+	 * so that the next poll does not wait for the delete.
+	 *
+	 */
+
+	class AckPuller extends Thread
+	{
+		AckPuller()
+		{
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			AmazonSQSClient c = new AmazonSQSClient();
+			ReceiveMessageRequest request = new ReceiveMessageRequest(ackQueue).withMaxNumberOfMessages(10)
+				.withWaitTimeSeconds(ackWait).withMessageAttributeNames("workflow", "timing", "tier");
+			int errors = 0;
+
+			while (running)
+			{
+				// Pulling the ackQueue
+				try
+				{
+					ReceiveMessageResult result = c.receiveMessage(request);
+					List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+					for (Message message : result.getMessages())
+					{
+						MessageAttributeValue workflow = message.getMessageAttributes().get("workflow");
+						MessageAttributeValue timing = message.getMessageAttributes().get("timing");
+						MessageAttributeValue tier = message.getMessageAttributes().get("tier");
+						handler.ack((workflow == null) ? null : workflow.getStringValue(), message.getBody(),
+							(timing == null) ? null : timing.getStringValue(), (tier == null) ? null : tier.getStringValue());
+						entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(entries.size()), message.getReceiptHandle()));
+					}
+					if (!entries.isEmpty())
+					{
+						sqsClient.deleteMessageBatchAsync(new DeleteMessageBatchRequest(ackQueue, entries), deleteHandler);
+					}
+					errors = 0;
+				} catch (Exception e)
+				{
+					logger.warn("Unable to receive ACKs: " + e.getMessage());
+					try
+					{
+						sleep(JobDispatcher.backoff(errors++));
+					} catch (InterruptedException ie)
+					{
+					}
+				}
+			}
+		}
+	}
+
+
+	// ACKs that are not deleted come back, as duplicates ignored by the scheduler
+	AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> deleteHandler = new AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult>()
+	{
+		public void onSuccess(DeleteMessageBatchRequest request, DeleteMessageBatchResult result)
+		{
+			if (!result.getFailed().isEmpty())
+			{
+				logger.warn(result.getFailed().size() + " ACKs not deleted: " + result.getFailed().get(0).getMessage());
+			}
+		}
+
+		public void onError(Exception e)
+		{
+			logger.warn("Unable to delete ACKs: " + e.getMessage());
+		}
+	};
+
+
+	public void purgeQueue()
+	{
+			try
+			{
+				PurgeQueueRequest req1 = new PurgeQueueRequest(longQueue);
+				sqsClient.purgeQueue(req1);
+				PurgeQueueRequest req2 = new PurgeQueueRequest(ackQueue);
+				sqsClient.purgeQueue(req2);
+			} catch (Exception e)
+			{
+			}
+	}
+}
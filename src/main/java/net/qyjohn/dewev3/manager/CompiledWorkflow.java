@@ -0,0 +1,252 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Precompiled binary form of a parsed workflow, used as a startup cache.
+ *
+ * The file holds the CSR job dependencies, the long-job classification from
+ * long.xml, the file table and the per-job descriptor fields. It is memory-mapped on load, so
+ * a cached workflow is ready in milliseconds instead of being parsed again.
+ * The key (normally built from the dag.xml and long.xml ETags) is stored in
+ * the header, and a file with a different key is treated as a cache miss.
+ *
+ * Layout (big-endian):
+ *
+ *	int	MAGIC, VERSION
+ *	string	key
+ *	int	nJobs, nEdges
+ *	int[]	childOffsets (nJobs+1), children (nEdges)
+ *	byte[]	flags (nJobs)
+ *	int	nFiles
+ *	(string, byte, long)[]	name, flags and size of each file
+ *	(string, string, string, ints, ints, ints)[]	id, name, command, binFiles, inFiles, outFiles of each job
+ *
+ * where a string is an int length followed by the UTF-8 bytes, and ints is an
+ * int count followed by the file IDs.
+ *
+ */
+
+public class CompiledWorkflow
+{
+	public final static int MAGIC   = 0x44455745;	// "DEWE"
+	public final static int VERSION = 3;
+	public final static byte FLAG_LONG_JOB = 1;
+
+	public String key;
+	public int[] childOffsets, children;
+	public byte[] flags;
+	public String[] ids, names, commands;
+	public int[][] binFiles, inFiles, outFiles;
+	public WorkflowFiles files;
+	final static Logger logger = Logger.getLogger(CompiledWorkflow.class);
+
+
+	public CompiledWorkflow(String key, int nJobs)
+	{
+		this.key = key;
+		flags    = new byte[nJobs];
+		ids      = new String[nJobs];
+		names    = new String[nJobs];
+		commands = new String[nJobs];
+		binFiles = new int[nJobs][];
+		inFiles  = new int[nJobs][];
+		outFiles = new int[nJobs][];
+	}
+
+	public int size()
+	{
+		return ids.length;
+	}
+
+
+	/**
+	 *
+	 * Write the compiled workflow to a file. The file is written next to its
+	 * final location and renamed, so a concurrent reader never sees it half done.
+	 *
+	 */
+
+	public void write(File file) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + "." + UUID.randomUUID().toString());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, key);
+			out.writeInt(size());
+			out.writeInt(children.length);
+			for (int i : childOffsets)
+			{
+				out.writeInt(i);
+			}
+			for (int i : children)
+			{
+				out.writeInt(i);
+			}
+			out.write(flags);
+			out.writeInt(files.size);
+			for (int f = 0; f < files.size; f++)
+			{
+				writeString(out, files.names[f]);
+				out.writeByte(files.flags[f]);
+				out.writeLong(files.sizes[f]);
+			}
+			for (int i = 0; i < size(); i++)
+			{
+				writeString(out, ids[i]);
+				writeString(out, names[i]);
+				writeString(out, commands[i]);
+				writeInts(out, binFiles[i]);
+				writeInts(out, inFiles[i]);
+				writeInts(out, outFiles[i]);
+			}
+		} finally
+		{
+			out.close();
+		}
+		if (!temp.renameTo(file))
+		{
+			temp.delete();
+			throw new IOException("Unable to create " + file);
+		}
+		logger.info("Compiled workflow written to " + file);
+	}
+
+
+	/**
+	 *
+	 * Load a compiled workflow. Returns null if the file does not exist, is not
+	 * readable or was compiled for a different key.
+	 *
+	 */
+
+	public static CompiledWorkflow load(File file, String key)
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try
+			{
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION) || !key.equals(readString(buffer)))
+				{
+					logger.info("Compiled workflow " + file + " is out of date.");
+					return null;
+				}
+
+				int nJobs  = buffer.getInt();
+				int nEdges = buffer.getInt();
+				CompiledWorkflow cw = new CompiledWorkflow(key, nJobs);
+				cw.childOffsets = new int[nJobs + 1];
+				cw.children = new int[nEdges];
+				IntBuffer ints = buffer.asIntBuffer();
+				ints.get(cw.childOffsets);
+				ints.get(cw.children);
+				buffer.position(buffer.position() + 4 * (nJobs + 1 + nEdges));
+				buffer.get(cw.flags);
+				cw.files = new WorkflowFiles();
+				int nFiles = buffer.getInt();
+				for (int f = 0; f < nFiles; f++)
+				{
+					String name = readString(buffer);
+					byte flag = buffer.get();
+					cw.files.addFile(name, flag, buffer.getLong());
+				}
+				for (int i = 0; i < nJobs; i++)
+				{
+					cw.ids[i]      = readString(buffer);
+					cw.names[i]    = readString(buffer).intern();
+					cw.commands[i] = readString(buffer);
+					cw.binFiles[i] = readInts(buffer);
+					cw.inFiles[i]  = readInts(buffer);
+					cw.outFiles[i] = readInts(buffer);
+				}
+				return cw;
+			} finally
+			{
+				raf.close();
+			}
+		} catch (Exception e)
+		{
+			logger.warn("Unable to load compiled workflow " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+
+	static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static void writeInts(DataOutputStream out, int[] ints) throws IOException
+	{
+		out.writeInt(ints.length);
+		for (int i : ints)
+		{
+			out.writeInt(i);
+		}
+	}
+
+	static int[] readInts(ByteBuffer buffer)
+	{
+		int[] ints = new int[buffer.getInt()];
+		for (int i = 0; i < ints.length; i++)
+		{
+			ints[i] = buffer.getInt();
+		}
+		return ints;
+	}
+
+	static String readString(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 *
+	 * Compile step: parse the workflow once and write it to the cache folder
+	 * configured in config.properties, e.g.
+	 *
+	 *	java net.qyjohn.dewev3.manager.CompiledWorkflow bucket prefix
+	 *
+	 */
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			Properties prop = new Properties();
+			InputStream input = new FileInputStream("config.properties");
+			prop.load(input);
+			String cacheDir = prop.getProperty("cacheDir", "/tmp/dewev3-cache");
+			new LambdaWorkflow(UUID.randomUUID().toString(), args[0], args[1], false, prop.getProperty("ackQueue"), cacheDir);
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
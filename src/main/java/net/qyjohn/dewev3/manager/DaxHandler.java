@@ -0,0 +1,31 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.List;
+
+/**
+ *
+ * Receives the jobs and job dependencies of a DAX document as DaxParser
+ * streams through it.
+ *
+ */
+
+public interface DaxHandler
+{
+	/**
+	 *
+	 * A <job> element has been parsed. The command is the job name followed by
+	 * the tokenized arguments. The list of <uses> is reused by the parser, so it
+	 * must not be kept after the call.
+	 *
+	 */
+
+	public void addJob(String id, String name, String command, List<DaxParser.FileUse> uses);
+
+	/**
+	 *
+	 * A <parent> element inside a <child> element has been parsed.
+	 *
+	 */
+
+	public void addDependency(String parentId, String childId);
+}
@@ -0,0 +1,213 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import javax.xml.stream.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Single-pass StAX parser for DAX workflow definitions (dag.xml).
+ *
+ * The document is never held in memory. Jobs and dependencies are handed to a
+ * DaxHandler as soon as the corresponding element has been read, so the input
+ * can be the object stream from S3 or Cloud Storage. Gzip-compressed input
+ * (dag.xml.gz) is detected from the stream header.
+ *
+ */
+
+public class DaxParser
+{
+	XMLInputFactory factory;
+	final static Logger logger = Logger.getLogger(DaxParser.class);
+
+	/**
+	 *
+	 * A <uses> element of a job
+	 *
+	 */
+
+	public static class FileUse
+	{
+		public String name;
+		public boolean input, executable, transfer, register;
+		public long size;
+
+		public FileUse(String name, boolean input, boolean executable, boolean transfer, boolean register, long size)
+		{
+			this.name       = name;
+			this.input      = input;
+			this.executable = executable;
+			this.transfer   = transfer;
+			this.register   = register;
+			this.size       = size;
+		}
+	}
+
+	public DaxParser()
+	{
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+
+	/**
+	 *
+	 * Wrap the stream with a GZIPInputStream if it starts with the gzip magic number.
+	 *
+	 */
+
+	public static InputStream decompress(InputStream in) throws IOException
+	{
+		BufferedInputStream bin = new BufferedInputStream(in, 65536);
+		bin.mark(2);
+		int b1 = bin.read();
+		int b2 = bin.read();
+		bin.reset();
+		if (b1 == 0x1f && b2 == 0x8b)
+		{
+			return new GZIPInputStream(bin, 65536);
+		}
+		return bin;
+	}
+
+
+	/**
+	 *
+	 * Parse the DAX document from the stream. The stream is closed when done.
+	 *
+	 */
+
+	public void parse(InputStream in, DaxHandler handler) throws Exception
+	{
+		InputStream input = decompress(in);
+		XMLStreamReader reader = factory.createXMLStreamReader(input);
+		try
+		{
+			// Job being parsed
+			String id = null, name = null;
+			StringBuilder command = null;
+			ArrayList<FileUse> uses = new ArrayList<FileUse>();
+			boolean inArgument = false;
+			StringBuilder text = new StringBuilder();
+			// Child being parsed
+			String child = null;
+			int nJobs = 0, nEdges = 0;
+
+			while (reader.hasNext())
+			{
+				int event = reader.next();
+				if ((text.length() > 0) && (event == XMLStreamConstants.START_ELEMENT || event == XMLStreamConstants.END_ELEMENT))
+				{
+					// Argument text, tokenized on white spaces once it is complete
+					tokenize(text, command);
+				}
+				if (event == XMLStreamConstants.START_ELEMENT)
+				{
+					String tag = reader.getLocalName();
+					if (tag.equals("job"))
+					{
+						id       = reader.getAttributeValue(null, "id");
+						name     = reader.getAttributeValue(null, "name").intern();	// shared by all jobs of the same type
+						command  = new StringBuilder(name);
+						uses.clear();
+					}
+					else if (tag.equals("argument") && id != null)
+					{
+						inArgument = true;
+					}
+					else if (inArgument)
+					{
+						// <file name="..."/> inside the argument list
+						command.append(' ').append(fileName(reader));
+					}
+					else if (tag.equals("uses") && id != null)
+					{
+						String size = reader.getAttributeValue(null, "size");
+						uses.add(new FileUse(fileName(reader),
+							"input".equals(reader.getAttributeValue(null, "link")),
+							"true".equals(reader.getAttributeValue(null, "executable")),
+							"true".equals(reader.getAttributeValue(null, "transfer")),
+							"true".equals(reader.getAttributeValue(null, "register")),
+							(size == null) ? -1 : Long.parseLong(size.trim())));
+					}
+					else if (tag.equals("child"))
+					{
+						child = reader.getAttributeValue(null, "ref");
+					}
+					else if (tag.equals("parent") && child != null)
+					{
+						handler.addDependency(reader.getAttributeValue(null, "ref"), child);
+						nEdges++;
+					}
+				}
+				else if (inArgument && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA))
+				{
+					// Argument text, which may come in several events (entity references, buffer boundaries)
+					text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT)
+				{
+					String tag = reader.getLocalName();
+					if (tag.equals("argument"))
+					{
+						inArgument = false;
+					}
+					else if (tag.equals("job") && id != null)
+					{
+						handler.addJob(id, name, command.toString(), uses);
+						id = null;
+						nJobs++;
+					}
+					else if (tag.equals("child"))
+					{
+						child = null;
+					}
+				}
+			}
+			logger.info("Parsed " + nJobs + " jobs and " + nEdges + " dependencies.");
+		} finally
+		{
+			reader.close();
+			input.close();
+		}
+	}
+
+
+	/**
+	 *
+	 * Append the tokens of the argument text to the command, and clear the text.
+	 *
+	 */
+
+	static void tokenize(StringBuilder text, StringBuilder command)
+	{
+		StringTokenizer st = new StringTokenizer(text.toString());
+		while (st.hasMoreTokens())
+		{
+			command.append(' ').append(st.nextToken());
+		}
+		text.setLength(0);
+	}
+
+
+	/**
+	 *
+	 * DAX 3.x uses the "name" attribute for files, older versions use "file".
+	 *
+	 */
+
+	String fileName(XMLStreamReader reader)
+	{
+		String file = reader.getAttributeValue(null, "name");
+		if (file == null)
+		{
+			file = reader.getAttributeValue(null, "file");
+		}
+		return file;
+	}
+}
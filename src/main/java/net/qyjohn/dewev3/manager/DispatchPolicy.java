@@ -0,0 +1,205 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.qyjohn.dewev3.worker.LambdaHandlerBase;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Decides, job by job, whether a short job goes to the FaaS workers or to
+ * the local worker. Long jobs always run locally.
+ *
+ * The scheduler reports every dispatch and every completion, so the policy
+ * knows how many jobs the local worker is running or holding (its in-flight
+ * count against localSlots) and the observed per-job latency on each side.
+ * A speculative copy on the local worker holds a slot like any local job,
+ * until the local copy ACKs, whether it won or lost. Latencies are only
+ * observed for the copy dispatched first, since the time of a job is taken
+ * from its first dispatch.
+ * The policy is selected with the dispatchPolicy property: "random" (the
+ * localPerc split), "adaptive", or the name of a class with a constructor
+ * taking the Properties.
+ *
+ */
+
+public abstract class DispatchPolicy
+{
+	public final static double WEIGHT = 0.2;	// weight of the latest observation in the latency averages
+
+	public int localSlots;
+	AtomicInteger localJobs = new AtomicInteger(0);	// dispatched to the local worker, not yet completed
+	Set<WorkflowJob> localCopies = Collections.newSetFromMap(new ConcurrentHashMap<WorkflowJob, Boolean>());	// the jobs counted in localJobs
+	volatile double localLatency, faasLatency;	// seconds, from dispatch to ACK
+	final static Logger logger = Logger.getLogger(DispatchPolicy.class);
+
+	public DispatchPolicy(Properties prop)
+	{
+		// Same as the number of executors in the local worker
+		int nProc = Runtime.getRuntime().availableProcessors();
+		localSlots   = Integer.parseInt(prop.getProperty("localSlots", Integer.toString(3 * nProc)));
+		localLatency = Double.parseDouble(prop.getProperty("localLatency", "1.0"));
+		faasLatency  = Double.parseDouble(prop.getProperty("faasLatency", "1.0"));
+	}
+
+
+	public static DispatchPolicy create(Properties prop) throws Exception
+	{
+		String name = prop.getProperty("dispatchPolicy", "random");
+		DispatchPolicy policy;
+		if (name.equals("random"))
+		{
+			policy = new RandomDispatchPolicy(prop);
+		}
+		else if (name.equals("adaptive"))
+		{
+			policy = new AdaptiveDispatchPolicy(prop);
+		}
+		else
+		{
+			policy = (DispatchPolicy) Class.forName(name).getConstructor(Properties.class).newInstance(prop);
+		}
+		logger.info("Dispatch policy: " + policy.getClass().getSimpleName());
+		return policy;
+	}
+
+
+	/**
+	 *
+	 * Whether a short job should run on the local worker. criticalPath is the
+	 * upward rank of the highest ranked job ready at the same time.
+	 *
+	 */
+
+	public abstract boolean runLocally(WorkflowJob job, float criticalPath);
+
+
+	/**
+	 *
+	 * Decide where a job goes and account for it. Returns true for the local worker.
+	 *
+	 */
+
+	public boolean dispatch(WorkflowJob job, float criticalPath)
+	{
+		boolean local = job.isLongJob || runLocally(job, criticalPath);
+		if (local)
+		{
+			localCopies.add(job);
+			localJobs.incrementAndGet();
+		}
+		job.local = local;
+		return local;
+	}
+
+	/**
+	 *
+	 * A speculative copy of a job was dispatched to the other tier.
+	 *
+	 */
+
+	public void speculated(WorkflowJob job)
+	{
+		if (!job.local && localCopies.add(job))
+		{
+			localJobs.incrementAndGet();
+		}
+	}
+
+
+	/**
+	 *
+	 * The first ACK of a job, from the given tier (see LambdaHandlerBase.ack(),
+	 * null when the worker did not say), seconds after its dispatch.
+	 *
+	 */
+
+	public void completed(WorkflowJob job, double seconds)
+	{
+		completed(job, seconds, null);
+	}
+
+	public void completed(WorkflowJob job, double seconds, String tier)
+	{
+		boolean local = isLocal(job, tier, true);
+		release(job, local);
+		if (local != job.local)
+		{
+			return;	// the speculative copy won, the time is not its own
+		}
+		if (local)
+		{
+			if (!job.isLongJob)
+			{
+				localLatency = (1 - WEIGHT) * localLatency + WEIGHT * seconds;
+			}
+		}
+		else
+		{
+			faasLatency = (1 - WEIGHT) * faasLatency + WEIGHT * seconds;
+		}
+	}
+
+	/**
+	 *
+	 * A later ACK of a job: another job of its chain, or the copy that lost.
+	 *
+	 */
+
+	public void duplicate(WorkflowJob job, String tier)
+	{
+		release(job, isLocal(job, tier, false));
+	}
+
+	/**
+	 *
+	 * A workflow has completed: forget the local copies that will not be ACKed
+	 * to it any more.
+	 *
+	 */
+
+	public void finished(List<WorkflowJob> jobs)
+	{
+		for (WorkflowJob job : jobs)
+		{
+			release(job, true);
+		}
+	}
+
+	/**
+	 *
+	 * Whether the copy of a job that ACKed ran locally. An ACK not saying its
+	 * tier is taken for the first copy when it is the first ACK, else for the
+	 * speculative copy.
+	 *
+	 */
+
+	public boolean isLocal(WorkflowJob job, String tier, boolean first)
+	{
+		if (tier != null)
+		{
+			return tier.equals(LambdaHandlerBase.LOCAL);
+		}
+		return (first || !job.speculated) ? job.local : !job.local;
+	}
+
+	void release(WorkflowJob job, boolean local)
+	{
+		if (local && localCopies.remove(job))
+		{
+			localJobs.decrementAndGet();
+		}
+	}
+
+
+	public int freeSlots()
+	{
+		return localSlots - localJobs.get();
+	}
+
+	public int queueDepth()
+	{
+		return Math.max(0, localJobs.get() - localSlots);
+	}
+}
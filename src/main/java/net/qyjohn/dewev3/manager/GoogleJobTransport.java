@@ -0,0 +1,104 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import net.qyjohn.dewev3.worker.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * The Google Cloud transport. Each workflow gets a GoogleTransceiver, with an
+ * ACK topic and a long job topic named after the workflow UUID, and a
+ * GoogleLocalWorker subscribed to its long job topic. Jobs for the Cloud
+ * Functions go to the shared jobTopic. ACKs are handed to the handler as
+ * soon as the subscriber of the ACK topic receives them. The Cloud Functions
+ * read the job definitions GoogleWorkflow uploads to Cloud Storage, so only
+ * single jobs are published: clustering and chain fusion are not available.
+ *
+ */
+
+public class GoogleJobTransport implements JobTransport
+{
+	public String jobTopic;
+	boolean cleanUp, localExec;
+	ConcurrentHashMap<String, GoogleTransceiver> transceivers = new ConcurrentHashMap<String, GoogleTransceiver>();
+	ConcurrentHashMap<String, GoogleLocalWorker> workers = new ConcurrentHashMap<String, GoogleLocalWorker>();
+	AckHandler handler;
+	final static Logger logger = Logger.getLogger(GoogleJobTransport.class);
+
+	public GoogleJobTransport(Properties prop)
+	{
+		jobTopic  = prop.getProperty("jobTopic");
+		cleanUp   = Boolean.parseBoolean(prop.getProperty("cleanUp"));
+		localExec = Boolean.parseBoolean(prop.getProperty("localExec"));
+	}
+
+
+	/**
+	 *
+	 * A workflow is represented by a UUID, and the ACK topic is named with the same UUID.
+	 *
+	 */
+
+	public Workflow loadWorkflow(String uuid, String bucket, String prefix)
+	{
+		transceivers.put(uuid, new GoogleTransceiver(uuid, jobTopic, handler));
+		GoogleWorkflow workflow = new GoogleWorkflow(uuid, bucket, prefix, localExec);
+
+		// Run one instance of the DeweWorker in the background
+		GoogleLocalWorker worker = new GoogleLocalWorker(uuid, cleanUp);
+		worker.start();
+		workers.put(uuid, worker);
+		return workflow;
+	}
+
+	public boolean supportsBatches()
+	{
+		return false;
+	}
+
+	public ObjectStore objectStore(Workflow workflow)
+	{
+		return null;
+	}
+
+	public void publishJob(WorkflowJob job, String jobXML, String partitionKey)
+	{
+		transceivers.get(job.workflow).publishJob(job, false);
+	}
+
+	public void publishLongJob(WorkflowJob job, String jobXML)
+	{
+		transceivers.get(job.workflow).publishJob(job, true);
+	}
+
+	public void receiveAcks(AckHandler handler)
+	{
+		this.handler = handler;
+	}
+
+
+	/**
+	 *
+	 * Delete the ACK topic and the long job topic, and stop the local worker.
+	 *
+	 */
+
+	public void completed(Workflow workflow)
+	{
+		GoogleTransceiver transceiver = transceivers.remove(workflow.uuid);
+		if (transceiver != null)
+		{
+			transceiver.cleanUp();
+		}
+		GoogleLocalWorker worker = workers.remove(workflow.uuid);
+		if (worker != null)
+		{
+			worker.setAsCompleted();
+		}
+	}
+
+	public void shutdown()
+	{
+	}
+}
@@ -20,24 +20,22 @@ public class GoogleTransceiver
 	public TopicName jobTopic, longTopic, ackTopic;
 	public Publisher jobSender, longSender;
 	public Subscriber ackReceiver;
-	public Stack<String> ackStack = new Stack<String>();
+	public JobTransport.AckHandler handler;
 	final static Logger logger = Logger.getLogger(GoogleTransceiver.class);
-	public int localPerc = 0;
 	
 	/**
 	 *
 	 * Constructor
-	 * Setup the corresponding topics and publisher / subscriber
+	 * Setup the corresponding topics and publisher / subscriber. The ACKs are handed
+	 * to the handler as they arrive, on the threads of the subscriber.
 	 *
 	 */
 
-	public GoogleTransceiver(String uuid, String topic, int localPerc)
+	public GoogleTransceiver(final String uuid, String topic, JobTransport.AckHandler handler)
 	{
+		this.handler = handler;
 		try
 		{
-			// Local execution percentage
-			this.localPerc = localPerc;
-			
 			// Topic names
 			jobTopic  = TopicName.create(projectId, topic);
             ackTopic  = TopicName.create(projectId, uuid);
@@ -63,23 +61,13 @@ public class GoogleTransceiver
 				@Override
 				public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) 
 				{
-					ackStack.push(message.getData().toStringUtf8().replaceAll("^\"|\"$", ""));	//Remove double quotes
+					String id = message.getData().toStringUtf8().replaceAll("^\"|\"$", "");	//Remove double quotes
+					GoogleTransceiver.this.handler.ack(uuid, id, message.getAttributesMap().get("timing"), message.getAttributesMap().get("tier"));
 					consumer.ack();
 				}
 			};
-			Subscriber subscriber = null;
-			try 
-			{
-				// Create a subscriber for "my-subscription-id" bound to the message receiver
-				subscriber = Subscriber.defaultBuilder(subscriptionName, receiver).build();
-				subscriber.startAsync();
-			} finally 
-			{
-				if (subscriber != null) 
-				{
-//					subscriber.stopAsync();
-				}	
-			}
+			ackReceiver = Subscriber.defaultBuilder(subscriptionName, receiver).build();
+			ackReceiver.startAsync();
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());
@@ -96,6 +84,7 @@ public class GoogleTransceiver
 	
 	public void cleanUp()
 	{
+		ackReceiver.stopAsync();
 		topicAdminClient.deleteTopic(ackTopic); 
 		topicAdminClient.deleteTopic(longTopic);	
 	}
@@ -104,14 +93,12 @@ public class GoogleTransceiver
 	
 	/**
 	 *
-	 * Publishing a job to the corresponding topic.
+	 * Publishing a job to the corresponding topic, the longTopic for the local worker.
 	 *
 	 */
 	 
-	public void publishJob(WorkflowJob job)
+	public void publishJob(WorkflowJob job, boolean local)
 	{
-		logger.info("Dispatching " + job.jobId + ":\t" + job.jobName);
-
 		try
 		{
 			PubsubMessage message = PubsubMessage.newBuilder()
@@ -121,22 +108,13 @@ public class GoogleTransceiver
 				.putAttributes("id", job.jobId)
 				.build();
 				
-			if (job.isLongJob)
+			if (local)
 			{
 				longSender.publish(message);
 			}
 			else
 			{
-				int rand = new Random().nextInt(100);
-				// Send localPerc% of jobs to the long queue for local execution
-				if (rand < localPerc) 
-				{
-					longSender.publish(message);
-				}
-				else
-				{
-					jobSender.publish(message);
-				}
+				jobSender.publish(message);
 			}
 		} catch (Exception e)
 		{
@@ -144,23 +122,4 @@ public class GoogleTransceiver
 			e.printStackTrace();				
 		}
 	}
-	
-	/**
-	 *
-	 * Receive job completion information from the ackTopic.
-	 *
-	 */
-
-	public String receiveAck()
-	{
-		if (ackStack.empty())
-		{
-			return null;
-		}
-		else
-		{
-			return ackStack.pop();
-		}
-	}
 }
-
@@ -1,11 +1,10 @@
 package net.qyjohn.dewev3.manager;
 
 import java.io.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.channels.Channels;
 import java.util.*;
 
 import org.dom4j.*;
-import org.dom4j.io.SAXReader;
 
 import com.google.cloud.storage.*;
 
@@ -13,16 +12,10 @@ import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 
-public class GoogleWorkflow
+public class GoogleWorkflow extends Workflow
 {
 	Storage storage;
-	public ConcurrentHashMap<String, WorkflowJob> jobs;
-	public String uuid, bucket, prefix;
-	public SAXReader reader;
-	public Document document;
-	List<String> longJobs = new ArrayList<String>();
 	final static Logger logger = Logger.getLogger(GoogleWorkflow.class);
-	public boolean localExec = false;
 
 	
 	/**
@@ -33,21 +26,18 @@ public class GoogleWorkflow
 	 
 	public GoogleWorkflow(String uuid, String bucket, String prefix, boolean localExec)
 	{
-		this.uuid = uuid;
-		this.localExec = localExec;
-		
-		this.bucket = bucket;
-		this.prefix = prefix;
+		super(uuid, bucket, prefix, localExec);
 		storage = StorageOptions.getDefaultInstance().getService();
-		reader = new SAXReader();
 		
 		try
 		{
-			// Initialize the HashMap for workflow jobs
 			checkLongJobs();
-			jobs = new ConcurrentHashMap<String, WorkflowJob>();
 			parseDocument();
-			parseWorkflow();	
+			dag.compile();
+			files.index(jobList);
+			descriptor = new JobDescriptor(uuid, bucket, prefix, null, files);
+			descriptor.resources = resources;
+			logger.info("The workflow has " + dag.size + " jobs, " + dag.edgeCount() + " dependencies and " + files.size + " files.");
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());	
@@ -55,13 +45,6 @@ public class GoogleWorkflow
 		}
 	}
 	
-	public boolean isEmpty()
-	{
-		return jobs.isEmpty();
-	}
-	
-	
-	
 	/**
 	 *
 	 * Load long-running job names from long.xml.
@@ -74,19 +57,7 @@ public class GoogleWorkflow
 		Blob blob = storage.get(blobId);
 		if (blob != null)
 		{
-			String  jobXML = new String(blob.getContent());
-			Element jobs = DocumentHelper.parseText(jobXML).getRootElement();
-
-			for ( Iterator iter = jobs.elementIterator( "job" ); iter.hasNext(); ) 
-			{
-				Element job = (Element) iter.next();
-				longJobs.add(job.attribute("name").getValue());
-			}
-			logger.info("Found long-running job definition long.xml with the following jobs:");
-			for (String s : longJobs)
-			{
-				logger.info("\t" + s);
-			}
+			addLongJobs(new String(blob.getContent()));
 		}
 		else
 		{
@@ -104,141 +75,33 @@ public class GoogleWorkflow
 	
 	/**
 	 *
-	 * Parse the work flow from dag.xml.
+	 * Parse the work flow from dag.xml, streaming from Cloud Storage. A gzip-compressed
+	 * dag.xml.gz is used when dag.xml does not exist.
 	 *
 	 */
          
 	public void parseDocument() throws Exception 
 	{
 		BlobId blobId = BlobId.of(bucket, prefix+"/dag.xml");
-		Blob blob = storage.get(blobId);
-		ByteArrayInputStream in = new ByteArrayInputStream(blob.getContent());
-		document = reader.read(in);
-	}
-	
-	/**
-	 *
-	 * Parse jobs and job dependencies
-	 *
-	 */
-	 
-	public void parseWorkflow()
-	{
-		List<Element> jobs = document.getRootElement().elements("job");
-		List<Element> children = document.getRootElement().elements("child");
-
-		for(Element job : jobs) 
+		if (storage.get(blobId) == null)
 		{
-			prepareJob(job);
+			blobId = BlobId.of(bucket, prefix+"/dag.xml.gz");
 		}
-		for(Element child : children) 
-		{
-			prepareChild(child);
-		}
-		jobs = null;
-		children = null;
+		parser.parse(Channels.newInputStream(storage.reader(blobId)), this);
 	}
 	
-	
 	/**
 	 *
-	 * Parse the dependencies of a job
+	 * Prepare a job, and upload its XML representation for the Cloud Functions
 	 *
 	 */
 	 
-	public void prepareChild(Element child)
+	public void addJob(String id, String name, String command, List<DaxParser.FileUse> uses)
 	{
-		String child_id = child.attribute("ref").getValue();
-		List<Element> parents = child.elements("parent");
-		
-		for (Element parent: parents)
-		{
-			String parent_id = parent.attribute("ref").getValue();
-			jobs.get(child_id).addParent(parent_id);
-			jobs.get(parent_id).addChild(child_id);
-		}
-	}
-
-	
-	/**
-	 *
-	 * Parse a job, extract job name (command) and command line arguments
-	 *
-	 */
-	 
-	public void prepareJob(Element element)
-	{
-		String id = element.attribute("id").getValue();
-		String name = element.attribute("name").getValue();
-		String command = name;		
-		
-		// Compose the command to execute
-		Element args = element.element("argument");
-		Node node;
-		Element e;
-		StringTokenizer st;
-		for ( int i = 0, size = args.nodeCount(); i < size; i++ )
-		{
-			node = args.node(i);
-			if ( node instanceof Element ) 
-			{
-				e = (Element) node;
-				command = command + " " + e.attribute("name").getValue();
-			}
-			else
-			{
-				st = new StringTokenizer(node.getText().trim());
-				while (st.hasMoreTokens()) 
-				{
-					command = command + " " + st.nextToken();
-				}
-			}
-		}
-		
-		// Binary, input files, output files
-		String binFiles = name, inFiles = "", outFiles = "";
-		for ( Iterator iter = element.elementIterator( "uses" ); iter.hasNext(); ) 
-		{
-			Element file = (Element) iter.next();
-			if (file.attribute("link").getValue().equals("input"))
-			{
-				// This is an input file
-				if (file.attribute("executable") != null)
-				{
-					if (file.attribute("executable").getValue().equals("true"))
-					{
-						binFiles = binFiles + " " + file.attribute("name").getValue();
-					}
-					else
-					{
-						inFiles = inFiles + " " + file.attribute("name").getValue();
-					}							
-				}
-				else
-				{
-					inFiles = inFiles + " " + file.attribute("name").getValue();
-				}							
-			}
-			else
-			{
-				outFiles = outFiles + " " + file.attribute("name").getValue();
-			}
-		}
-		
-		// XML representation
-		String xml = createXML(uuid, bucket, prefix, id, name, command, binFiles.trim(), inFiles.trim(), outFiles.trim());
-		
-		// Create a WorkflowJob object
+		super.addJob(id, name, command, uses);
+		WorkflowJob job = jobList.get(jobList.size() - 1);
+		String xml = createXML(uuid, bucket, prefix, id, name, command, files.join(job.binFiles), files.join(job.inFiles), files.join(job.outFiles));
 		writeJobInfo(bucket, prefix, id, xml);
-		WorkflowJob job = new WorkflowJob(uuid, bucket, prefix, id, name, xml);	
-
-		job.setCommand(command);
-		job.setLongJob(localExec);
-		if (longJobs.contains(name))
-		{
-			job.setLongJob(true);
-		}
-		jobs.put(id, job);
 	}
 	
 	public String createXML(String workflow, String bucket, String prefix, String id, String name, String command, String binFiles, String inFiles, String outFiles)
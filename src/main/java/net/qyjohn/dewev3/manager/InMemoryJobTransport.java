@@ -0,0 +1,169 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.qyjohn.dewev3.worker.JobTiming;
+import net.qyjohn.dewev3.worker.LambdaHandlerBase;
+import org.dom4j.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * An in-process transport, to run and benchmark the scheduler without cloud
+ * access. Descriptors go to two BlockingQueues, one for the FaaS workers and
+ * one for the local worker, and ACKs are handed to the handler directly.
+ * Workflows are loaded from local folders (see LocalWorkflow).
+ *
+ * Simulated workers take the descriptors from the queues, wait memoryLatency
+ * milliseconds per job and ACK every job of the descriptor. There are
+ * memoryWorkers of them on the FaaS queue and memoryLocalWorkers on the local
+ * queue. With no simulated workers, the queues are left to the caller, who
+ * ACKs the jobs with ack().
+ *
+ */
+
+public class InMemoryJobTransport implements JobTransport
+{
+	public LinkedBlockingQueue<String> jobQueue = new LinkedBlockingQueue<String>();
+	public LinkedBlockingQueue<String> longQueue = new LinkedBlockingQueue<String>();
+	boolean localExec;
+	int workers, localWorkers;
+	long latency;
+	volatile boolean running = true;
+	AckHandler handler;
+	final static Logger logger = Logger.getLogger(InMemoryJobTransport.class);
+
+	public InMemoryJobTransport(Properties prop)
+	{
+		int nProc = Runtime.getRuntime().availableProcessors();
+		localExec    = Boolean.parseBoolean(prop.getProperty("localExec"));
+		workers      = Integer.parseInt(prop.getProperty("memoryWorkers", "" + nProc));
+		localWorkers = Integer.parseInt(prop.getProperty("memoryLocalWorkers", "" + nProc));
+		latency      = Long.parseLong(prop.getProperty("memoryLatency", "0"));	// ms per job
+	}
+
+
+	public Workflow loadWorkflow(String uuid, String bucket, String prefix)
+	{
+		return new LocalWorkflow(uuid, bucket, prefix, localExec);
+	}
+
+	public boolean supportsBatches()
+	{
+		return true;
+	}
+
+	public ObjectStore objectStore(Workflow workflow)
+	{
+		return new LocalObjectStore(new File(workflow.bucket));
+	}
+
+	public void publishJob(WorkflowJob job, String jobXML, String partitionKey)
+	{
+		jobQueue.add(jobXML);
+	}
+
+	public void publishLongJob(WorkflowJob job, String jobXML)
+	{
+		longQueue.add(jobXML);
+	}
+
+	public void receiveAcks(AckHandler handler)
+	{
+		this.handler = handler;
+		for (int i = 0; i < workers; i++)
+		{
+			new SimulatedWorker(jobQueue, LambdaHandlerBase.FAAS).start();
+		}
+		for (int i = 0; i < localWorkers; i++)
+		{
+			new SimulatedWorker(longQueue, LambdaHandlerBase.LOCAL).start();
+		}
+	}
+
+	/**
+	 *
+	 * ACK a job taken from one of the queues. The timing and the tier may be null.
+	 *
+	 */
+
+	public void ack(String workflow, String jobId, String timing, String tier)
+	{
+		handler.ack(workflow, jobId, timing, tier);
+	}
+
+	public void completed(Workflow workflow)
+	{
+	}
+
+	public void shutdown()
+	{
+		running = false;
+	}
+
+
+	/**
+	 *
+	 * Takes descriptors from a queue and ACKs their jobs after the simulated latency.
+	 *
+	 */
+
+	class SimulatedWorker extends Thread
+	{
+		LinkedBlockingQueue<String> queue;
+		String tier;
+
+		SimulatedWorker(LinkedBlockingQueue<String> queue, String tier)
+		{
+			this.queue = queue;
+			this.tier = tier;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			while (running)
+			{
+				try
+				{
+					String jobXML = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (jobXML == null)
+					{
+						continue;
+					}
+					JobTiming timing = new JobTiming();
+					Element root = DocumentHelper.parseText(jobXML).getRootElement();
+					String workflow = root.attributeValue("workflow");
+					List<String> ids = new ArrayList<String>();
+					if (root.getName().equals("root"))
+					{
+						ids.add(root.attributeValue("id"));
+					}
+					else
+					{
+						for (Iterator iter = root.elementIterator("job"); iter.hasNext(); )
+						{
+							ids.add(((Element) iter.next()).attributeValue("id"));
+						}
+					}
+					if (latency > 0)
+					{
+						sleep(latency * ids.size());
+					}
+					timing.exec = timing.lap();
+					String t = timing.encode();
+					for (String id : ids)
+					{
+						ack(workflow, id, t, tier);
+					}
+				} catch (Exception e)
+				{
+					System.out.println(e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+
+/**
+ *
+ * Horizontal clustering of ready jobs for the FaaS workers.
+ *
+ * Ready jobs of the same transformation (job name) are grouped, and each group
+ * is split into clusters of at most clusterSize jobs, sent as one descriptor
+ * and executed by one Lambda invocation with the binaries downloaded once.
+ * Clusters are balanced (21 jobs with a clusterSize of 20 give clusters of 11
+ * and 10, not 20 and 1), and when clusterCost is set a cluster is also closed
+ * once the estimated run time of its jobs reaches clusterCost seconds, so a
+ * cluster of expensive jobs does not serialize too much work.
+ *
+ */
+
+public class JobClusterer
+{
+	public int clusterSize;
+	public double clusterCost;
+	JobCostModel costModel;
+	LinkedHashMap<String, List<WorkflowJob>> groups = new LinkedHashMap<String, List<WorkflowJob>>();
+
+	public JobClusterer(int clusterSize, double clusterCost, JobCostModel costModel)
+	{
+		this.clusterSize = clusterSize;
+		this.clusterCost = clusterCost;
+		this.costModel   = costModel;
+	}
+
+	public boolean isEnabled()
+	{
+		return clusterSize > 1;
+	}
+
+	public boolean isEmpty()
+	{
+		return groups.isEmpty();
+	}
+
+
+	public void add(WorkflowJob job)
+	{
+		List<WorkflowJob> group = groups.get(job.jobName);
+		if (group == null)
+		{
+			group = new ArrayList<WorkflowJob>();
+			groups.put(job.jobName, group);
+		}
+		group.add(job);
+	}
+
+
+	/**
+	 *
+	 * Split the groups into clusters, and start over with no jobs.
+	 *
+	 */
+
+	public List<List<WorkflowJob>> drain()
+	{
+		List<List<WorkflowJob>> clusters = new ArrayList<List<WorkflowJob>>();
+		for (List<WorkflowJob> group : groups.values())
+		{
+			int nClusters = (group.size() + clusterSize - 1) / clusterSize;
+			int members   = (group.size() + nClusters - 1) / nClusters;
+			List<WorkflowJob> cluster = new ArrayList<WorkflowJob>();
+			double cost = 0;
+			for (WorkflowJob job : group)
+			{
+				cluster.add(job);
+				cost += costModel.getCost(job.jobName);
+				if ((cluster.size() == members) || ((clusterCost > 0) && (cost >= clusterCost)))
+				{
+					clusters.add(cluster);
+					cluster = new ArrayList<WorkflowJob>();
+					cost = 0;
+				}
+			}
+			if (!cluster.isEmpty())
+			{
+				clusters.add(cluster);
+			}
+		}
+		groups.clear();
+		return clusters;
+	}
+}
@@ -0,0 +1,129 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Per-transformation cost estimates (in seconds), used to compute the upward
+ * rank of the jobs.
+ *
+ * Estimates come from built-in defaults for the Montage transformations,
+ * overridden by the history file written at the end of earlier runs. The
+ * history is an exponentially weighted average of the dispatch-to-ACK time
+ * observed for each job name.
+ *
+ */
+
+public class JobCostModel
+{
+	public final static double DEFAULT_COST = 1.0;
+	public final static double WEIGHT = 0.3;	// weight of the latest run in the history
+
+	public String historyFile;
+	HashMap<String, Double> costs = new HashMap<String, Double>();
+	HashMap<String, double[]> observed = new HashMap<String, double[]>();	// sum and count of this run
+	final static Logger logger = Logger.getLogger(JobCostModel.class);
+
+	public JobCostModel(String historyFile)
+	{
+		this.historyFile = historyFile;
+
+		// Job-name defaults for Montage
+		costs.put("mProjectPP",  2.0);
+		costs.put("mDiffFit",    1.0);
+		costs.put("mConcatFit",  2.0);
+		costs.put("mBgModel",    5.0);
+		costs.put("mBackground", 1.0);
+		costs.put("mImgtbl",     2.0);
+		costs.put("mAdd",       10.0);
+		costs.put("mShrink",     3.0);
+		costs.put("mJPEG",       2.0);
+
+		if ((historyFile != null) && new File(historyFile).exists())
+		{
+			try
+			{
+				Properties prop = new Properties();
+				InputStream input = new FileInputStream(historyFile);
+				prop.load(input);
+				input.close();
+				for (String name : prop.stringPropertyNames())
+				{
+					costs.put(name, Double.parseDouble(prop.getProperty(name)));
+				}
+				logger.info("Loaded " + prop.size() + " job cost estimates from " + historyFile);
+			} catch (Exception e)
+			{
+				logger.warn("Unable to load job cost history " + historyFile + ": " + e.getMessage());
+			}
+		}
+	}
+
+
+	public double getCost(String name)
+	{
+		Double cost = costs.get(name);
+		return (cost == null) ? DEFAULT_COST : cost;
+	}
+
+
+	/**
+	 *
+	 * Record the observed run time of a job
+	 *
+	 */
+
+	public synchronized void observe(String name, double seconds)
+	{
+		double[] stat = observed.get(name);
+		if (stat == null)
+		{
+			stat = new double[2];
+			observed.put(name, stat);
+		}
+		stat[0] += seconds;
+		stat[1]++;
+	}
+
+
+	/**
+	 *
+	 * Merge the observations of this run into the history file
+	 *
+	 */
+
+	public synchronized void save()
+	{
+		if ((historyFile == null) || observed.isEmpty())
+		{
+			return;
+		}
+
+		Properties prop = new Properties();
+		for (Map.Entry<String, double[]> entry : observed.entrySet())
+		{
+			String name = entry.getKey();
+			double average = entry.getValue()[0] / entry.getValue()[1];
+			Double cost = costs.get(name);
+			double estimate = (cost == null) ? average : (1 - WEIGHT) * cost + WEIGHT * average;
+			costs.put(name, estimate);
+		}
+		for (Map.Entry<String, Double> entry : costs.entrySet())
+		{
+			prop.setProperty(entry.getKey(), String.format("%.3f", entry.getValue()));
+		}
+
+		try
+		{
+			OutputStream output = new FileOutputStream(historyFile);
+			prop.store(output, "DEWE v3 job cost history (seconds)");
+			output.close();
+		} catch (Exception e)
+		{
+			logger.warn("Unable to save job cost history " + historyFile + ": " + e.getMessage());
+		}
+	}
+}
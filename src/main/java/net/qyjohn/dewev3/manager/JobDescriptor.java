@@ -0,0 +1,272 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+
+/**
+ *
+ * Template for the XML job descriptors sent to the workers.
+ *
+ * The workflow UUID, bucket, prefix and ackQueue are the same for every job,
+ * so they are escaped once into a shared header and footer. The descriptor of
+ * a job is only built when the job is dispatched, by appending the per-job
+ * fields to a per-thread buffer that is reused from one job to the next. File
+ * lists are written from the WorkflowFiles table as space-separated names.
+ *
+ * A cluster descriptor carries the shared attributes on a <cluster> root
+ * element and one <job> element per member, with the same per-job attributes.
+ * A chain descriptor has the same layout on a <chain> root element; its jobs
+ * run in order on one worker, so files produced inside the chain are left out
+ * of the inFiles, and out of the outFiles unless a job outside the chain
+ * consumes them, or they are final or registered outputs.
+ *
+ * The resources declared in long.xml for a transformation (cores, memory,
+ * disk) are appended, already escaped, to the descriptors of its jobs.
+ *
+ */
+
+public class JobDescriptor
+{
+	public String header, footer;
+	public String clusterHeader, clusterFooter, chainHeader, chainFooter;
+	public WorkflowFiles files;
+	public Map<String, String> resources = Collections.emptyMap();
+	ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>()
+	{
+		@Override
+		protected StringBuilder initialValue()
+		{
+			return new StringBuilder(1024);
+		}
+	};
+
+	public JobDescriptor(String workflow, String bucket, String prefix, String ackQueue, WorkflowFiles files)
+	{
+		this.files = files;
+		StringBuilder sb = new StringBuilder();
+		attribute(sb, "workflow", workflow);
+		attribute(sb, "bucket", bucket);
+		attribute(sb, "prefix", prefix);
+		String common = sb.toString();
+
+		sb.setLength(0);
+		if (ackQueue != null)
+		{
+			attribute(sb, "ackQueue", ackQueue);
+		}
+		String ack = sb.toString();
+
+		String declaration = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+		header = declaration + "<root" + common;
+		footer = ack + "/>";
+		clusterHeader = declaration + "<cluster" + common + ack + ">";
+		clusterFooter = "</cluster>";
+		chainHeader = declaration + "<chain" + common + ack + ">";
+		chainFooter = "</chain>";
+	}
+
+
+	/**
+	 *
+	 * The XML descriptor of a job
+	 *
+	 */
+
+	public String toXML(WorkflowJob job)
+	{
+		StringBuilder sb = buffers.get();
+		sb.setLength(0);
+		write(sb, job);
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * The XML descriptor of a cluster of jobs
+	 *
+	 */
+
+	public String toXML(List<WorkflowJob> cluster)
+	{
+		StringBuilder sb = buffers.get();
+		sb.setLength(0);
+		sb.append(clusterHeader);
+		for (WorkflowJob job : cluster)
+		{
+			sb.append("<job");
+			writeJob(sb, job);
+			sb.append("/>");
+		}
+		sb.append(clusterFooter);
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * The XML descriptor of a fused chain of jobs, in execution order
+	 *
+	 */
+
+	public String toChainXML(List<WorkflowJob> chain)
+	{
+		int[] members = new int[chain.size()];
+		for (int i = 0; i < members.length; i++)
+		{
+			members[i] = chain.get(i).index;
+		}
+
+		StringBuilder sb = buffers.get();
+		sb.setLength(0);
+		sb.append(chainHeader);
+		for (WorkflowJob job : chain)
+		{
+			sb.append("<job");
+			attribute(sb, "id",       job.jobId);
+			attribute(sb, "name",     job.jobName);
+			attribute(sb, "command",  job.jobCommand);
+			attribute(sb, "binFiles", job.binFiles);
+			chainAttribute(sb, "inFiles",  job.inFiles,  members, true);
+			chainAttribute(sb, "outFiles", job.outFiles, members, false);
+			sb.append(" priority=\"").append(job.rank).append('"');
+			appendResources(sb, job);
+			sb.append("/>");
+		}
+		sb.append(chainFooter);
+		return sb.toString();
+	}
+
+	public void write(StringBuilder sb, WorkflowJob job)
+	{
+		sb.append(header);
+		writeJob(sb, job);
+		sb.append(footer);
+	}
+
+	void writeJob(StringBuilder sb, WorkflowJob job)
+	{
+		attribute(sb, "id",       job.jobId);
+		attribute(sb, "name",     job.jobName);
+		attribute(sb, "command",  job.jobCommand);
+		attribute(sb, "binFiles", job.binFiles);
+		attribute(sb, "inFiles",  job.inFiles);
+		attribute(sb, "outFiles", job.outFiles);
+		sb.append(" priority=\"").append(job.rank).append('"');
+		appendResources(sb, job);
+	}
+
+	void appendResources(StringBuilder sb, WorkflowJob job)
+	{
+		String declared = resources.get(job.jobName);
+		if (declared != null)
+		{
+			sb.append(declared);
+		}
+	}
+
+
+	/**
+	 *
+	 * Append an escaped XML attribute, with a leading space
+	 *
+	 */
+
+	public static void attribute(StringBuilder sb, String name, String value)
+	{
+		sb.append(' ').append(name).append("=\"");
+		escape(sb, value);
+		sb.append('"');
+	}
+
+	/**
+	 *
+	 * Append a file list attribute
+	 *
+	 */
+
+	public void attribute(StringBuilder sb, String name, int[] list)
+	{
+		sb.append(' ').append(name).append("=\"");
+		for (int i = 0; i < list.length; i++)
+		{
+			if (i > 0)
+			{
+				sb.append(' ');
+			}
+			escape(sb, files.names[list[i]]);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 *
+	 * Append a file list attribute, leaving out the files that stay inside a chain
+	 *
+	 */
+
+	void chainAttribute(StringBuilder sb, String name, int[] list, int[] members, boolean input)
+	{
+		sb.append(' ').append(name).append("=\"");
+		boolean first = true;
+		for (int f : list)
+		{
+			boolean internal = input ? contains(members, files.producers[f]) : isInternalOutput(f, members);
+			if (!internal)
+			{
+				if (!first)
+				{
+					sb.append(' ');
+				}
+				escape(sb, files.names[f]);
+				first = false;
+			}
+		}
+		sb.append('"');
+	}
+
+	boolean isInternalOutput(int file, int[] members)
+	{
+		// Final outputs and outputs the DAX asks to register are always uploaded
+		if ((files.consumerCount(file) == 0) || ((files.flags[file] & WorkflowFiles.REGISTER) != 0))
+		{
+			return false;
+		}
+		for (int i = files.consumerOffsets[file]; i < files.consumerOffsets[file + 1]; i++)
+		{
+			if (!contains(members, files.consumers[i]))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean contains(int[] members, int job)
+	{
+		for (int m : members)
+		{
+			if (m == job)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void escape(StringBuilder sb, String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c)
+			{
+				case '&':	sb.append("&amp;");	break;
+				case '<':	sb.append("&lt;");	break;
+				case '>':	sb.append("&gt;");	break;
+				case '"':	sb.append("&quot;");	break;
+				case '\n':	sb.append("&#10;");	break;
+				case '\r':	sb.append("&#13;");	break;
+				case '\t':	sb.append("&#9;");	break;
+				default:	sb.append(c);
+			}
+		}
+	}
+}
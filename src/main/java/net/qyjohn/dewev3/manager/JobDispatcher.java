@@ -0,0 +1,422 @@
+package net.qyjohn.dewev3.manager;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.kinesis.*;
+import com.amazonaws.services.kinesis.model.*;
+import com.amazonaws.services.sqs.*;
+import com.amazonaws.services.sqs.model.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Micro-batching job dispatcher.
+ *
+ * The scheduler hands job descriptors to this thread instead of sending them
+ * one by one. Jobs arriving within a short window (dispatchWindow, in ms) are
+ * flushed together: jobs for the Lambda functions with Kinesis PutRecords (up
+ * to 500 records or 5 MB per call), jobs for the local worker with SQS
+ * SendMessageBatch (up to 10 messages or 256 KB per call). Records that fail
+ * inside a partially successful batch are retried on their own, with an
+ * exponential backoff. The latency of every batch call is recorded.
+ *
+ * Batch calls are made with the asynchronous clients, with at most maxInFlight
+ * calls outstanding. The dispatcher thread only waits for a free slot, and
+ * retries are scheduled on a timer instead of sleeping, so one throttled call
+ * does not hold back the batches behind it. The scheduler never waits for the
+ * network: it only adds jobs to the queue of this thread.
+ *
+ */
+
+public class JobDispatcher extends Thread
+{
+	public final static int MAX_RECORDS = 500, MAX_RECORDS_BYTES = 5 * 1024 * 1024;
+	public final static int MAX_MESSAGES = 10,  MAX_MESSAGES_BYTES = 256 * 1024;
+	public final static long MAX_BACKOFF = 5000;
+
+	public AmazonKinesisAsyncClient kinesisClient;
+	public AmazonSQSAsyncClient sqsClient;
+	public String jobStream, longQueue;
+	public long window;
+	public int maxInFlight;
+	LinkedBlockingQueue<Dispatch> queue = new LinkedBlockingQueue<Dispatch>();
+	volatile boolean running = true;
+
+	// Outstanding batch calls, and batches not fully accepted yet (guarded by this)
+	Semaphore inFlight;
+	int pending = 0;
+	ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "JobDispatcher-retry");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Batch metrics
+	long batches = 0, records = 0, totalLatency = 0, maxLatency = 0;
+	final static Logger logger = Logger.getLogger(JobDispatcher.class);
+
+	/**
+	 *
+	 * A job descriptor waiting to be sent. A null partition key means the long queue.
+	 *
+	 */
+
+	class Dispatch
+	{
+		String jobXML, partitionKey;
+
+		Dispatch(String jobXML, String partitionKey)
+		{
+			this.jobXML = jobXML;
+			this.partitionKey = partitionKey;
+		}
+	}
+
+
+	public JobDispatcher(AmazonKinesisAsyncClient kinesisClient, AmazonSQSAsyncClient sqsClient, String jobStream, String longQueue, long window, int maxInFlight)
+	{
+		this.kinesisClient = kinesisClient;
+		this.sqsClient = sqsClient;
+		this.jobStream = jobStream;
+		this.longQueue = longQueue;
+		this.window    = window;
+		this.maxInFlight = maxInFlight;
+		inFlight = new Semaphore(maxInFlight);
+		setDaemon(true);
+	}
+
+
+	/**
+	 *
+	 * Queue a job for the jobStream (Lambda functions)
+	 *
+	 */
+
+	public void sendToStream(String jobXML, String partitionKey)
+	{
+		queue.add(new Dispatch(jobXML, partitionKey));
+	}
+
+	/**
+	 *
+	 * Queue a job for the longQueue (local worker)
+	 *
+	 */
+
+	public void sendToQueue(String jobXML)
+	{
+		queue.add(new Dispatch(jobXML, null));
+	}
+
+
+	public void run()
+	{
+		List<Dispatch> batch = new ArrayList<Dispatch>();
+		while (running || !queue.isEmpty())
+		{
+			try
+			{
+				// Wait for the first job, then collect jobs until the window closes
+				Dispatch first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+				{
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + window;
+				long wait;
+				while ((batch.size() < MAX_RECORDS) && ((wait = deadline - System.currentTimeMillis()) > 0))
+				{
+					Dispatch next = queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (next == null)
+					{
+						break;
+					}
+					batch.add(next);
+				}
+				queue.drainTo(batch, MAX_RECORDS - batch.size());
+				flush(batch);
+				batch.clear();
+			} catch (Exception e)
+			{
+				System.out.println(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 * Send a batch, splitting it by destination and by the request size limits.
+	 *
+	 */
+
+	public void flush(List<Dispatch> batch)
+	{
+		List<PutRecordsRequestEntry> recordEntries = new ArrayList<PutRecordsRequestEntry>();
+		List<SendMessageBatchRequestEntry> messageEntries = new ArrayList<SendMessageBatchRequestEntry>();
+		int recordBytes = 0, messageBytes = 0;
+
+		for (Dispatch d : batch)
+		{
+			byte[] bytes = d.jobXML.getBytes();
+			if (d.partitionKey != null)
+			{
+				int size = bytes.length + d.partitionKey.length();
+				if ((recordEntries.size() == MAX_RECORDS) || (recordBytes + size > MAX_RECORDS_BYTES))
+				{
+					begin();
+					putRecords(recordEntries, 0);
+					recordEntries = new ArrayList<PutRecordsRequestEntry>();
+					recordBytes = 0;
+				}
+				recordEntries.add(new PutRecordsRequestEntry().withData(ByteBuffer.wrap(bytes)).withPartitionKey(d.partitionKey));
+				recordBytes += size;
+			}
+			else
+			{
+				if ((messageEntries.size() == MAX_MESSAGES) || (messageBytes + bytes.length > MAX_MESSAGES_BYTES))
+				{
+					begin();
+					sendMessages(messageEntries, 0);
+					messageEntries = new ArrayList<SendMessageBatchRequestEntry>();
+					messageBytes = 0;
+				}
+				messageEntries.add(new SendMessageBatchRequestEntry(Integer.toString(messageEntries.size()), d.jobXML));
+				messageBytes += bytes.length;
+			}
+		}
+		if (!recordEntries.isEmpty())
+		{
+			begin();
+			putRecords(recordEntries, 0);
+		}
+		if (!messageEntries.isEmpty())
+		{
+			begin();
+			sendMessages(messageEntries, 0);
+		}
+	}
+
+
+	/**
+	 *
+	 * PutRecords until every record is accepted, retrying only the failed ones.
+	 *
+	 */
+
+	public void putRecords(final List<PutRecordsRequestEntry> entries, final int attempt)
+	{
+		final long start = System.currentTimeMillis();
+		PutRecordsRequest request = new PutRecordsRequest().withStreamName(jobStream).withRecords(entries);
+		AsyncHandler<PutRecordsRequest, PutRecordsResult> handler = new AsyncHandler<PutRecordsRequest, PutRecordsResult>()
+		{
+			public void onSuccess(PutRecordsRequest request, PutRecordsResult result)
+			{
+				inFlight.release();
+				recordLatency("PutRecords", entries.size(), System.currentTimeMillis() - start);
+				if ((result.getFailedRecordCount() == null) || (result.getFailedRecordCount() == 0))
+				{
+					done();
+					return;
+				}
+				List<PutRecordsRequestEntry> failed = new ArrayList<PutRecordsRequestEntry>();
+				List<PutRecordsResultEntry> results = result.getRecords();
+				for (int i = 0; i < results.size(); i++)
+				{
+					if (results.get(i).getErrorCode() != null)
+					{
+						failed.add(entries.get(i));
+					}
+				}
+				logger.warn(failed.size() + " of " + entries.size() + " records failed: " + firstError(results).getErrorMessage());
+				retryRecords(failed, attempt);
+			}
+
+			public void onError(Exception e)
+			{
+				inFlight.release();
+				logger.warn("PutRecords of " + entries.size() + " jobs failed: " + e.getMessage());
+				retryRecords(entries, attempt);
+			}
+		};
+
+		acquire();
+		try
+		{
+			kinesisClient.putRecordsAsync(request, handler);
+		} catch (Exception e)
+		{
+			handler.onError(e);
+		}
+	}
+
+	void retryRecords(final List<PutRecordsRequestEntry> entries, final int attempt)
+	{
+		retries.schedule(new Runnable()
+		{
+			public void run()
+			{
+				putRecords(entries, attempt + 1);
+			}
+		}, backoff(attempt), TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 *
+	 * SendMessageBatch until every message is accepted, retrying only the failed ones.
+	 *
+	 */
+
+	public void sendMessages(final List<SendMessageBatchRequestEntry> entries, final int attempt)
+	{
+		final long start = System.currentTimeMillis();
+		AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> handler = new AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>()
+		{
+			public void onSuccess(SendMessageBatchRequest request, SendMessageBatchResult result)
+			{
+				inFlight.release();
+				recordLatency("SendMessageBatch", entries.size(), System.currentTimeMillis() - start);
+				if (result.getFailed().isEmpty())
+				{
+					done();
+					return;
+				}
+				Set<String> failedIds = new HashSet<String>();
+				for (BatchResultErrorEntry error : result.getFailed())
+				{
+					failedIds.add(error.getId());
+				}
+				List<SendMessageBatchRequestEntry> failed = new ArrayList<SendMessageBatchRequestEntry>();
+				for (SendMessageBatchRequestEntry entry : entries)
+				{
+					if (failedIds.contains(entry.getId()))
+					{
+						failed.add(entry);
+					}
+				}
+				logger.warn(failed.size() + " of " + entries.size() + " messages failed: " + result.getFailed().get(0).getMessage());
+				retryMessages(failed, attempt);
+			}
+
+			public void onError(Exception e)
+			{
+				inFlight.release();
+				logger.warn("SendMessageBatch of " + entries.size() + " jobs failed: " + e.getMessage());
+				retryMessages(entries, attempt);
+			}
+		};
+
+		acquire();
+		try
+		{
+			sqsClient.sendMessageBatchAsync(new SendMessageBatchRequest(longQueue, entries), handler);
+		} catch (Exception e)
+		{
+			handler.onError(e);
+		}
+	}
+
+	void retryMessages(final List<SendMessageBatchRequestEntry> entries, final int attempt)
+	{
+		retries.schedule(new Runnable()
+		{
+			public void run()
+			{
+				sendMessages(entries, attempt + 1);
+			}
+		}, backoff(attempt), TimeUnit.MILLISECONDS);
+	}
+
+
+	PutRecordsResultEntry firstError(List<PutRecordsResultEntry> results)
+	{
+		for (PutRecordsResultEntry r : results)
+		{
+			if (r.getErrorCode() != null)
+			{
+				return r;
+			}
+		}
+		return null;
+	}
+
+	static long backoff(int attempt)
+	{
+		return Math.min(MAX_BACKOFF, 100L << Math.min(attempt, 10));
+	}
+
+	/**
+	 *
+	 * Wait for a free slot for a batch call.
+	 *
+	 */
+
+	void acquire()
+	{
+		inFlight.acquireUninterruptibly();
+	}
+
+	synchronized void begin()
+	{
+		pending++;
+	}
+
+	synchronized void done()
+	{
+		pending--;
+		notifyAll();
+	}
+
+	synchronized void recordLatency(String call, int size, long latency)
+	{
+		batches++;
+		records += size;
+		totalLatency += latency;
+		maxLatency = Math.max(maxLatency, latency);
+		logger.debug(call + " of " + size + " jobs took " + latency + " ms");
+	}
+
+
+	/**
+	 *
+	 * Send the remaining jobs, wait until they are all accepted, and stop the dispatcher thread.
+	 *
+	 */
+
+	public void shutdown()
+	{
+		running = false;
+		try
+		{
+			join();
+			synchronized (this)
+			{
+				while (pending > 0)
+				{
+					wait();
+				}
+			}
+		} catch (InterruptedException e)
+		{
+		}
+		retries.shutdown();
+	}
+
+	public synchronized void report()
+	{
+		if (batches > 0)
+		{
+			logger.info("Dispatched " + records + " jobs in " + batches + " batches, average batch latency "
+				+ (totalLatency / batches) + " ms, maximum " + maxLatency + " ms.");
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package net.qyjohn.dewev3.manager;
+
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Content-addressed memoization of job results across workflow runs.
+ *
+ * The cache key of a job is the SHA-256 of its name, its command line, the
+ * names and content hashes of its binaries (prefix/bin) and of the workflow
+ * inputs it reads (prefix/workdir), the names and cache keys of the jobs
+ * producing its other inputs, and the names of its outputs. Keys are computed
+ * parents first, so only the workflow inputs and the binaries are hashed. A
+ * job reading an input missing from the store has no key, and neither have
+ * the jobs depending on it.
+ *
+ * When a job completes, each of its outputs is copied once to
+ * <root>/objects/<content hash>, and a manifest listing the outputs and their
+ * hashes is written to <root>/jobs/<key>. Before the first dispatch, the jobs
+ * with a manifest are looked up, the outputs needed by the jobs still to run
+ * (and the final outputs) are copied back to prefix/workdir, and the jobs are
+ * marked complete without being dispatched. The store calls run on a pool of
+ * threads, the saves in the background of the ACK handling.
+ *
+ * A fused chain is memoized as one unit, like it is dispatched: its manifest
+ * is keyed from the keys of all its jobs, lists only the outputs the chain
+ * uploads (the files internal to the chain never reach the store), and the
+ * chain is restored as a whole.
+ *
+ */
+
+public class JobMemoizer
+{
+	Workflow workflow;
+	ObjectStore store;
+	String root;
+	String[] keys;	// per job, null when the job can not be memoized
+	String[] units;	// manifest key per dispatch unit, at the index of its head job
+	ExecutorService executor;
+	final static Logger logger = Logger.getLogger(JobMemoizer.class);
+
+	public JobMemoizer(Workflow workflow, ObjectStore store, String root, int threads) throws Exception
+	{
+		this.workflow = workflow;
+		this.store = store;
+		this.root = root;
+		executor = Executors.newFixedThreadPool(threads);
+		computeKeys();
+	}
+
+
+	/**
+	 *
+	 * The cache key of every job.
+	 *
+	 */
+
+	void computeKeys() throws Exception
+	{
+		WorkflowFiles files = workflow.files;
+		String prefix = workflow.prefix;
+
+		// Hash the binaries and the workflow inputs in parallel
+		final String[] hashes = new String[files.size];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		BitSet seen = new BitSet(files.size);
+		for (WorkflowJob job : workflow.jobList)
+		{
+			for (int f : job.binFiles)
+			{
+				if (!seen.get(f))
+				{
+					seen.set(f);
+					tasks.add(hashTask(hashes, f, prefix + "/bin/" + files.names[f]));
+				}
+			}
+			for (int f : job.inFiles)
+			{
+				if (!seen.get(f) && files.isWorkflowInput(f))
+				{
+					seen.set(f);
+					tasks.add(hashTask(hashes, f, prefix + "/workdir/" + files.names[f]));
+				}
+			}
+		}
+		for (Future<Void> future : executor.invokeAll(tasks))
+		{
+			future.get();
+		}
+
+		keys = new String[workflow.dag.size];
+		int memoizable = 0;
+		for (int j : workflow.dag.topologicalOrder())
+		{
+			WorkflowJob job = workflow.jobList.get(j);
+			StringBuilder sb = new StringBuilder();
+			sb.append(job.jobName).append('\n').append(job.jobCommand).append('\n');
+			boolean complete = true;
+			for (int f : job.binFiles)
+			{
+				complete &= (hashes[f] != null);
+				sb.append("bin ").append(files.names[f]).append(' ').append(hashes[f]).append('\n');
+			}
+			for (int f : job.inFiles)
+			{
+				int producer = files.producers[f];
+				String hash = (producer < 0) ? hashes[f] : keys[producer];
+				complete &= (hash != null);
+				sb.append("in ").append(files.names[f]).append(' ').append(hash).append('\n');
+			}
+			for (int f : job.outFiles)
+			{
+				sb.append("out ").append(files.names[f]).append('\n');
+			}
+			if (complete)
+			{
+				keys[j] = sha256(sb.toString());
+				memoizable++;
+			}
+		}
+		logger.info(memoizable + " of " + workflow.dag.size + " jobs can be memoized.");
+
+		// A fused chain is memoized as a whole, when all its jobs can be
+		WorkflowDag dag = workflow.dag;
+		units = new String[dag.size];
+		for (int j = 0; j < dag.size; j++)
+		{
+			if (dag.chainHead(j) != j)
+			{
+				continue;
+			}
+			if (dag.chainNext(j) < 0)
+			{
+				units[j] = keys[j];
+				continue;
+			}
+			StringBuilder sb = new StringBuilder("chain\n");
+			boolean complete = true;
+			for (int k = j; k >= 0; k = dag.chainNext(k))
+			{
+				complete &= (keys[k] != null);
+				sb.append(keys[k]).append('\n');
+			}
+			units[j] = complete ? sha256(sb.toString()) : null;
+		}
+	}
+
+	Callable<Void> hashTask(final String[] hashes, final int file, final String key)
+	{
+		return new Callable<Void>()
+		{
+			public Void call() throws Exception
+			{
+				hashes[file] = store.hash(key);
+				return null;
+			}
+		};
+	}
+
+
+	/**
+	 *
+	 * Complete the jobs found in the cache, after copying back their outputs.
+	 * Returns the jobs completed.
+	 *
+	 */
+
+	public List<WorkflowJob> restore() throws Exception
+	{
+		final WorkflowFiles files = workflow.files;
+		final String prefix = workflow.prefix;
+		int n = workflow.dag.size;
+
+		// Read the manifests
+		final String[] manifests = new String[n];
+		List<Callable<Void>> reads = new ArrayList<Callable<Void>>();
+		for (int j = 0; j < n; j++)
+		{
+			if (units[j] != null)
+			{
+				final int job = j;
+				reads.add(new Callable<Void>()
+				{
+					public Void call() throws Exception
+					{
+						manifests[job] = store.read(root + "/jobs/" + units[job]);
+						return null;
+					}
+				});
+			}
+		}
+		for (Future<Void> future : executor.invokeAll(reads))
+		{
+			future.get();
+		}
+		WorkflowDag dag = workflow.dag;
+		BitSet found = new BitSet(n);
+		for (int j = 0; j < n; j++)
+		{
+			for (int k = (manifests[j] != null) ? j : -1; k >= 0; k = dag.chainNext(k))
+			{
+				found.set(k);
+			}
+		}
+
+		// Copy back the outputs needed by the jobs that will run, and the final
+		// outputs. A copy failing leaves its job, and so its descendants, to run,
+		// which may need more outputs: repeat until every copy succeeds.
+		BitSet copied = new BitSet(files.size);
+		boolean failed = true;
+		while (failed)
+		{
+			found = completable(found);
+			Map<Future<Void>, Integer> copies = new HashMap<Future<Void>, Integer>();
+			for (int j = found.nextSetBit(0); j >= 0; j = found.nextSetBit(j + 1))
+			{
+				if (manifests[j] == null)
+				{
+					continue;	// a job inside a chain, restored with its head
+				}
+				for (String line : manifests[j].split("\n"))
+				{
+					if (line.isEmpty())
+					{
+						continue;
+					}
+					String[] entry = line.split(" ");
+					final int f = files.getId(entry[0]);
+					final String hash = entry[1];
+					boolean needed = files.isFinalOutput(f);
+					for (int i = files.consumerOffsets[f]; i < files.consumerOffsets[f + 1]; i++)
+					{
+						needed |= !found.get(files.consumers[i]);
+					}
+					if (needed && !copied.get(f))
+					{
+						copied.set(f);
+						copies.put(executor.submit(new Callable<Void>()
+						{
+							public Void call() throws Exception
+							{
+								store.copy(root + "/objects/" + hash, prefix + "/workdir/" + files.names[f]);
+								return null;
+							}
+						}), j);
+					}
+				}
+			}
+
+			failed = false;
+			for (Map.Entry<Future<Void>, Integer> copy : copies.entrySet())
+			{
+				try
+				{
+					copy.getKey().get();
+				} catch (ExecutionException e)
+				{
+					logger.warn("Unable to restore an output of " + workflow.jobList.get(copy.getValue()).jobId + ": " + e.getCause().getMessage());
+					for (int k = copy.getValue(); k >= 0; k = dag.chainNext(k))
+					{
+						found.clear(k);
+					}
+					failed = true;
+				}
+			}
+		}
+
+		BitSet completed = workflow.dag.completeAll(found);
+		List<WorkflowJob> hits = new ArrayList<WorkflowJob>();
+		for (int j = completed.nextSetBit(0); j >= 0; j = completed.nextSetBit(j + 1))
+		{
+			hits.add(workflow.jobList.get(j));
+		}
+		return hits;
+	}
+
+
+	/**
+	 *
+	 * The jobs of a set that can be completed together: those whose parents
+	 * are all in the result, with fused chains kept or dropped as a whole.
+	 *
+	 */
+
+	BitSet completable(BitSet jobs)
+	{
+		WorkflowDag dag = workflow.dag;
+		BitSet set = (BitSet) jobs.clone();
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			BitSet blocked = new BitSet(dag.size);
+			for (int j : dag.topologicalOrder())
+			{
+				if (blocked.get(j) || !set.get(j))
+				{
+					changed |= set.get(j);
+					set.clear(j);
+					for (int e = dag.childOffsets[j]; e < dag.childOffsets[j + 1]; e++)
+					{
+						blocked.set(dag.children[e]);
+					}
+				}
+			}
+			for (int j = 0; j < dag.size; j++)
+			{
+				if (!set.get(j) && (dag.chainHead(j) != j || dag.chainNext(j) >= 0))
+				{
+					for (int k = dag.chainHead(j); k >= 0; k = dag.chainNext(k))
+					{
+						changed |= set.get(k);
+						set.clear(k);
+					}
+				}
+			}
+		}
+		return set;
+	}
+
+
+	/**
+	 *
+	 * Store the outputs of a completed job and its manifest, in the background.
+	 * Jobs restored from the cache are not stored again. For a fused chain, the
+	 * head stores the uploaded outputs of the whole chain, and the other jobs
+	 * nothing.
+	 *
+	 */
+
+	public void save(final WorkflowJob job)
+	{
+		if (units[job.index] == null)
+		{
+			return;
+		}
+		final List<Integer> outputs = new ArrayList<Integer>();
+		List<WorkflowJob> chain = workflow.getChain(job);
+		int[] members = new int[chain.size()];
+		for (int i = 0; i < members.length; i++)
+		{
+			members[i] = chain.get(i).index;
+		}
+		for (WorkflowJob member : chain)
+		{
+			for (int f : member.outFiles)
+			{
+				if ((members.length == 1) || !workflow.descriptor.isInternalOutput(f, members))
+				{
+					outputs.add(f);
+				}
+			}
+		}
+		executor.submit(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					WorkflowFiles files = workflow.files;
+					StringBuilder manifest = new StringBuilder();
+					for (int f : outputs)
+					{
+						String name = workflow.prefix + "/workdir/" + files.names[f];
+						String hash = store.hash(name);
+						if (hash == null)
+						{
+							logger.warn("Not memoizing " + job.jobId + ", output " + files.names[f] + " is missing.");
+							return;
+						}
+						String object = root + "/objects/" + hash;
+						if (store.hash(object) == null)
+						{
+							store.copy(name, object);
+						}
+						manifest.append(files.names[f]).append(' ').append(hash).append('\n');
+					}
+					store.write(root + "/jobs/" + units[job.index], manifest.toString());
+				} catch (Exception e)
+				{
+					logger.warn("Unable to memoize " + job.jobId + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+
+	/**
+	 *
+	 * Wait for the pending saves.
+	 *
+	 */
+
+	public void shutdown()
+	{
+		executor.shutdown();
+		try
+		{
+			executor.awaitTermination(1, TimeUnit.HOURS);
+		} catch (InterruptedException e)
+		{
+			logger.warn("Interrupted while saving job results: " + e.getMessage());
+		}
+	}
+
+
+	static String sha256(String text) throws Exception
+	{
+		return hex(MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8")));
+	}
+
+	static String hex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+		{
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,60 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+
+/**
+ *
+ * Observed run times (dispatch to ACK, in seconds) per transformation, kept
+ * as the last SAMPLES observations of each job name so that percentiles follow
+ * the current conditions of the workers.
+ *
+ */
+
+public class JobRuntimes
+{
+	public final static int SAMPLES = 100;
+	public final static int MIN_SAMPLES = 5;
+
+	HashMap<String, Samples> runtimes = new HashMap<String, Samples>();
+
+	class Samples
+	{
+		double[] values = new double[SAMPLES];
+		int count = 0, next = 0;
+	}
+
+
+	public synchronized void observe(String name, double seconds)
+	{
+		Samples s = runtimes.get(name);
+		if (s == null)
+		{
+			s = new Samples();
+			runtimes.put(name, s);
+		}
+		s.values[s.next] = seconds;
+		s.next = (s.next + 1) % SAMPLES;
+		s.count = Math.min(s.count + 1, SAMPLES);
+	}
+
+
+	/**
+	 *
+	 * The p-th percentile (0 < p <= 1) of the run time of a job name, or -1 with
+	 * fewer than MIN_SAMPLES observations.
+	 *
+	 */
+
+	public synchronized double percentile(String name, double p)
+	{
+		Samples s = runtimes.get(name);
+		if ((s == null) || (s.count < MIN_SAMPLES))
+		{
+			return -1;
+		}
+		double[] sorted = Arrays.copyOf(s.values, s.count);
+		Arrays.sort(sorted);
+		int k = (int) Math.ceil(p * s.count) - 1;
+		return sorted[Math.max(0, Math.min(k, s.count - 1))];
+	}
+}
@@ -0,0 +1,100 @@
+package net.qyjohn.dewev3.manager;
+
+/**
+ *
+ * Moves jobs from the scheduler to the workers, and ACKs back.
+ *
+ * A transport publishes job descriptors for the FaaS workers and for the
+ * local worker, and hands the ACKs it receives to an AckHandler. It also
+ * loads the workflows from the storage its workers read from. The scheduling
+ * logic (LambdaSchedulerService and LambdaWorkflowScheduler) only talks to
+ * this interface, so the same scheduler runs on AWS (Kinesis and SQS), on
+ * Google Cloud (Pub/Sub), or in-process with BlockingQueues.
+ *
+ */
+
+public interface JobTransport
+{
+	/**
+	 *
+	 * Receives the ACKs. The workflow is null when the worker did not say which
+	 * workflow the job belongs to, the timing is null when the worker did not
+	 * send phase timings (see JobTiming), the tier (LambdaHandlerBase.FAAS or
+	 * LOCAL) is null when the worker did not say where it ran the job. Called
+	 * concurrently by the receiving threads.
+	 *
+	 */
+
+	public interface AckHandler
+	{
+		public void ack(String workflow, String jobId, String timing, String tier);
+	}
+
+
+	/**
+	 *
+	 * Load a workflow, and set up whatever the transport needs to run it.
+	 *
+	 */
+
+	public Workflow loadWorkflow(String uuid, String bucket, String prefix);
+
+	/**
+	 *
+	 * Whether the workers accept cluster and chain descriptors. Without it, only
+	 * single jobs are published.
+	 *
+	 */
+
+	public boolean supportsBatches();
+
+	/**
+	 *
+	 * The storage holding the files of a workflow, for the JobMemoizer. Null if
+	 * the transport does not give the scheduler access to it.
+	 *
+	 */
+
+	public ObjectStore objectStore(Workflow workflow);
+
+	/**
+	 *
+	 * Publish a descriptor for the FaaS workers. The job is the job, or the first
+	 * job of the cluster or chain, described by the descriptor.
+	 *
+	 */
+
+	public void publishJob(WorkflowJob job, String jobXML, String partitionKey);
+
+	/**
+	 *
+	 * Publish a descriptor for the local worker.
+	 *
+	 */
+
+	public void publishLongJob(WorkflowJob job, String jobXML);
+
+	/**
+	 *
+	 * Start handing the ACKs to the handler.
+	 *
+	 */
+
+	public void receiveAcks(AckHandler handler);
+
+	/**
+	 *
+	 * Release what loadWorkflow() set up, once the workflow has completed.
+	 *
+	 */
+
+	public void completed(Workflow workflow);
+
+	/**
+	 *
+	 * Stop the transport, once all the workflows have completed.
+	 *
+	 */
+
+	public void shutdown();
+}
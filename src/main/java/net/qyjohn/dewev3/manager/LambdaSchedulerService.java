@@ -0,0 +1,248 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import net.qyjohn.dewev3.worker.JobTiming;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Long-running scheduler service, running any number of workflows at the same time.
+ *
+ * Each submitted workflow gets a LambdaWorkflowScheduler with its own DAG
+ * state. The service owns what the workflows share: the job transport (with
+ * its clients, local worker and ACK receivers), the dispatch policy (which
+ * tracks the load of the local worker) and the job cost model. Workers tag
+ * each ACK with the workflow UUID of the descriptor, and the service routes
+ * it to the scheduler of that workflow. A timer thread, also shared, closes
+ * the clustering windows of the workflows.
+ *
+ * The transport property selects the transport: aws (the default), google,
+ * memory, or the name of a JobTransport class with a (Properties) constructor.
+ *
+ * Usage: LambdaSchedulerService [bucket prefix]... then one "bucket prefix"
+ * submission per line on the standard input, or "bucket prefix uuid" to
+ * resume a workflow from its checkpoint (see WorkflowCheckpoint). The service exits once the
+ * standard input is closed and the running workflows have completed.
+ *
+ */
+
+public class LambdaSchedulerService implements JobTransport.AckHandler
+{
+	public Properties prop = new Properties();
+	public JobTransport transport;
+
+	DispatchPolicy policy;
+	JobCostModel costModel;
+	JobRuntimes runtimes = new JobRuntimes();
+	ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "scheduler-timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	ConcurrentHashMap<String, LambdaWorkflowScheduler> workflows = new ConcurrentHashMap<String, LambdaWorkflowScheduler>();
+	final static Logger logger = Logger.getLogger(LambdaSchedulerService.class);
+
+	public LambdaSchedulerService()
+	{
+		this(null);
+	}
+
+	/**
+	 *
+	 * A service with a given transport. A null transport uses the transport property.
+	 *
+	 */
+
+	public LambdaSchedulerService(String transportName)
+	{
+		try
+		{
+			// System Properties
+			InputStream input = new FileInputStream("config.properties");
+			prop.load(input);
+			if (transportName == null)
+			{
+				transportName = prop.getProperty("transport", "aws");
+			}
+			transport = createTransport(transportName, prop);
+			policy    = DispatchPolicy.create(prop);
+			costModel = new JobCostModel(prop.getProperty("costHistory"));
+			transport.receiveAcks(this);
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();				
+		}
+	}
+
+
+	public static JobTransport createTransport(String name, Properties prop) throws Exception
+	{
+		if (name.equals("aws"))
+		{
+			return new AwsJobTransport(prop);
+		}
+		else if (name.equals("google"))
+		{
+			return new GoogleJobTransport(prop);
+		}
+		else if (name.equals("memory"))
+		{
+			return new InMemoryJobTransport(prop);
+		}
+		return (JobTransport) Class.forName(name).getConstructor(Properties.class).newInstance(prop);
+	}
+
+
+	/**
+	 *
+	 * Parse a workflow and start running it.
+	 *
+	 */
+
+	public LambdaWorkflowScheduler submit(String bucket, String prefix)
+	{
+		return submit(bucket, prefix, null);
+	}
+
+	/**
+	 *
+	 * Parse a workflow and run it under a given UUID, resuming it if it has a
+	 * checkpoint. A null UUID starts a new run.
+	 *
+	 */
+
+	public LambdaWorkflowScheduler submit(String bucket, String prefix, String uuid)
+	{
+		LambdaWorkflowScheduler scheduler = new LambdaWorkflowScheduler(bucket, prefix, uuid, this);
+		workflows.put(scheduler.uuid, scheduler);
+		scheduler.initialDispatch();
+		return scheduler;
+	}
+
+	void completed(LambdaWorkflowScheduler scheduler)
+	{
+		workflows.remove(scheduler.uuid);
+		transport.completed(scheduler.workflow);
+		costModel.save();
+		logger.info(workflows.size() + " workflows still running.");
+		synchronized (this)
+		{
+			notifyAll();
+		}
+	}
+
+
+	/**
+	 *
+	 * Wait until no workflow is running.
+	 *
+	 */
+
+	public synchronized void awaitCompletion() throws InterruptedException
+	{
+		while (!workflows.isEmpty())
+		{
+			wait();
+		}
+	}
+
+
+	/**
+	 *
+	 * Hand an ACK to the scheduler of its workflow. ACKs without a workflow
+	 * attribute come from older workers, and are accepted when a single
+	 * workflow is running.
+	 *
+	 */
+
+	public void ack(String workflow, String job, String timing, String tier)
+	{
+		LambdaWorkflowScheduler scheduler = null;
+		if (workflow != null)
+		{
+			scheduler = workflows.get(workflow);
+		}
+		else if (workflows.size() == 1)
+		{
+			scheduler = workflows.values().iterator().next();
+		}
+
+		if (scheduler != null)
+		{
+			logger.info(job + " is now completed.");
+			scheduler.setJobAsComplete(job, JobTiming.parse(timing), tier);
+		}
+		else
+		{
+			logger.debug("Ignoring ACK " + job + " of a workflow not running.");
+		}
+	}
+
+
+	/**
+	 *
+	 * Stop the shared components, once all the workflows have completed.
+	 *
+	 */
+
+	public void shutdown()
+	{
+		timer.shutdown();
+		transport.shutdown();
+	}
+
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			final LambdaSchedulerService service = new LambdaSchedulerService();
+			for (int i = 0; i + 1 < args.length; i += 2)
+			{
+				service.submit(args[i], args[i+1]);
+			}
+
+			// Submissions are parsed in parallel, each in a thread of its own
+			List<Thread> submissions = new ArrayList<Thread>();
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+			String line;
+			while ((line = in.readLine()) != null) 
+			{
+				final String[] submission = line.trim().split("\\s+");
+				if ((submission.length != 2) && (submission.length != 3))
+				{
+					logger.warn("Expecting \"bucket prefix [uuid]\", ignoring " + line);
+					continue;
+				}
+				Thread t = new Thread()
+				{
+					public void run()
+					{
+						service.submit(submission[0], submission[1], (submission.length > 2) ? submission[2] : null);
+					}
+				};
+				t.start();
+				submissions.add(t);
+			}
+			for (Thread t : submissions)
+			{
+				t.join();
+			}
+
+			service.awaitCompletion();
+			service.shutdown();
+			System.exit(0);
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
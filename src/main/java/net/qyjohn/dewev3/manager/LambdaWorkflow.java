@@ -1,11 +1,9 @@
 package net.qyjohn.dewev3.manager;
 
 import java.io.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.*;
 
 import org.dom4j.*;
-import org.dom4j.io.SAXReader;
 
 import com.amazonaws.regions.*;
 import com.amazonaws.services.s3.*;
@@ -16,15 +14,11 @@ import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 
-public class LambdaWorkflow
+public class LambdaWorkflow extends Workflow
 {
-	public ConcurrentHashMap<String, WorkflowJob> jobs;
-	public String uuid, bucket, prefix, ackQueue;
-	public SAXReader reader;
-	public Document document;
-	List<String> longJobs = new ArrayList<String>();
+	public String ackQueue;
+	public String dagKey, dagETag, longETag = "none", cacheDir;
 	final static Logger logger = Logger.getLogger(LambdaWorkflow.class);
-	public boolean localExec = false;
 	public AmazonS3Client client;
 
 	
@@ -36,22 +30,36 @@ public class LambdaWorkflow
 	 
 	public LambdaWorkflow(String uuid, String bucket, String prefix, boolean localExec, String ackQueue)
 	{
-		this.uuid = uuid;
-		this.localExec = localExec;
-		this.ackQueue  = ackQueue;
+		this(uuid, bucket, prefix, localExec, ackQueue, null);
+	}
 
-		this.bucket = bucket;
-		this.prefix = prefix;
+	/**
+	 *
+	 * Constructor with a cache folder for compiled workflows. A null cacheDir disables the cache.
+	 *
+	 */
+	 
+	public LambdaWorkflow(String uuid, String bucket, String prefix, boolean localExec, String ackQueue, String cacheDir)
+	{
+		super(uuid, bucket, prefix, localExec);
+		this.ackQueue  = ackQueue;
+		this.cacheDir  = cacheDir;
 		client = new AmazonS3Client();
-		reader = new SAXReader();
 		
 		try
 		{
-			// Initialize the HashMap for workflow jobs
 			checkLongJobs();
-			jobs = new ConcurrentHashMap<String, WorkflowJob>();
-			parseDocument();
-			parseWorkflow();	
+			findDocument();
+			if (!loadCompiled())
+			{
+				parseDocument();
+				dag.compile();
+				files.index(jobList);
+				writeCompiled();
+			}
+			descriptor = new JobDescriptor(uuid, bucket, prefix, ackQueue, files);
+			descriptor.resources = resources;
+			logger.info("The workflow has " + dag.size + " jobs, " + dag.edgeCount() + " dependencies and " + files.size + " files.");
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());	
@@ -59,13 +67,6 @@ public class LambdaWorkflow
 		}
 	}
 	
-	public boolean isEmpty()
-	{
-		return jobs.isEmpty();
-	}
-	
-	
-	
 	/**
 	 *
 	 * Load long-running job names from long.xml.
@@ -78,20 +79,9 @@ public class LambdaWorkflow
 		if ( client.doesObjectExist(bucket, prefix+"/long.xml") )
 		{
 			S3Object s3Object= client.getObject(bucket, prefix+"/long.xml");
+			longETag = s3Object.getObjectMetadata().getETag();
 			byte[] byteArray = IOUtils.toByteArray(s3Object.getObjectContent());
-			String jobsXML = new String(byteArray);
-			Element jobs = DocumentHelper.parseText(jobsXML).getRootElement();
-
-			for ( Iterator iter = jobs.elementIterator( "job" ); iter.hasNext(); ) 
-			{
-				Element job = (Element) iter.next();
-				longJobs.add(job.attribute("name").getValue());
-			}
-			logger.info("Found long-running job definition long.xml with the following jobs:");
-			for (String s : longJobs)
-			{
-				logger.info("\t" + s);
-			}
+			addLongJobs(new String(byteArray));
 		}
 		else
 		{
@@ -109,197 +99,120 @@ public class LambdaWorkflow
 	
 	/**
 	 *
-	 * Parse the work flow from dag.xml.
+	 * Locate dag.xml and get its ETag. A gzip-compressed dag.xml.gz is used when 
+	 * dag.xml does not exist.
 	 *
 	 */
          
-	public void parseDocument() throws Exception 
+	public void findDocument() throws Exception 
 	{
-/*
-		S3Object s3Object= client.getObject(bucket, prefix+"/dag.xml");
-		S3ObjectInputStream in = s3Object.getObjectContent();
-		document = reader.read(in);
-*/
-		download(bucket, prefix+"/dag.xml", "/tmp/dag.xml");
-		document = reader.read(new File("/tmp/dag.xml"));
+		dagKey = prefix + "/dag.xml";
+		if (!client.doesObjectExist(bucket, dagKey))
+		{
+			dagKey = prefix + "/dag.xml.gz";
+		}
+		dagETag = client.getObjectMetadata(bucket, dagKey).getETag();
 	}
+
 	
 	/**
 	 *
-	 * Parse jobs and job dependencies
+	 * Parse the work flow from dag.xml, streaming from S3.
 	 *
 	 */
-	 
-	public void parseWorkflow()
+         
+	public void parseDocument() throws Exception 
 	{
-		List<Element> jobs = document.getRootElement().elements("job");
-		List<Element> children = document.getRootElement().elements("child");
-
-		for(Element job : jobs) 
-		{
-			prepareJob(job);
-		}
-		for(Element child : children) 
-		{
-			prepareChild(child);
-		}
-		jobs = null;
-		children = null;
+		S3Object s3Object = client.getObject(bucket, dagKey);
+		parser.parse(s3Object.getObjectContent(), this);
 	}
-	
+
 	
 	/**
 	 *
-	 * Parse the dependencies of a job
+	 * The compiled workflow is keyed by the ETags of dag.xml and long.xml.
 	 *
 	 */
-	 
-	public void prepareChild(Element child)
+
+	public File compiledFile()
 	{
-		String child_id = child.attribute("ref").getValue();
-		List<Element> parents = child.elements("parent");
-		
-		for (Element parent: parents)
-		{
-			String parent_id = parent.attribute("ref").getValue();
-			jobs.get(child_id).addParent(parent_id);
-			jobs.get(parent_id).addChild(child_id);
-		}
+		return new File(cacheDir, bucket + "/" + prefix + ".dwf");
+	}
+
+	public String compiledKey()
+	{
+		return dagETag + ":" + longETag;
 	}
 
 	
 	/**
 	 *
-	 * Parse a job, extract job name (command) and command line arguments
+	 * Load the jobs and job dependencies from the compiled workflow, if it is up to date.
 	 *
 	 */
-	 
-	public void prepareJob(Element element)
+
+	public boolean loadCompiled()
 	{
-		String id = element.attribute("id").getValue();
-		String name = element.attribute("name").getValue();
-		String command = name;		
-		
-		// Compose the command to execute
-		Element args = element.element("argument");
-		Node node;
-		Element e;
-		StringTokenizer st;
-		for ( int i = 0, size = args.nodeCount(); i < size; i++ )
+		if (cacheDir == null)
 		{
-			node = args.node(i);
-			if ( node instanceof Element ) 
-			{
-				e = (Element) node;
-				command = command + " " + e.attribute("name").getValue();
-			}
-			else
-			{
-				st = new StringTokenizer(node.getText().trim());
-				while (st.hasMoreTokens()) 
-				{
-					command = command + " " + st.nextToken();
-				}
-			}
+			return false;
 		}
-		
-		// Binary, input files, output files
-		String binFiles = name, inFiles = "", outFiles = "";
-		for ( Iterator iter = element.elementIterator( "uses" ); iter.hasNext(); ) 
+		CompiledWorkflow cw = CompiledWorkflow.load(compiledFile(), compiledKey());
+		if (cw == null)
 		{
-			Element file = (Element) iter.next();
-			if (file.attribute("link").getValue().equals("input"))
-			{
-				// This is an input file
-				if (file.attribute("executable") != null)
-				{
-					if (file.attribute("executable").getValue().equals("true"))
-					{
-						binFiles = binFiles + " " + file.attribute("name").getValue();
-					}
-					else
-					{
-						inFiles = inFiles + " " + file.attribute("name").getValue();
-					}							
-				}
-				else
-				{
-					inFiles = inFiles + " " + file.attribute("name").getValue();
-				}							
-			}
-			else
-			{
-				outFiles = outFiles + " " + file.attribute("name").getValue();
-			}
+			return false;
 		}
-		
-		// XML representation
-		String xml = createXML(uuid, bucket, prefix, id, name, command, binFiles.trim(), inFiles.trim(), outFiles.trim());
-		
-		// Create a WorkflowJob object
-//		writeJobInfo(bucket, prefix, id, xml);
-		WorkflowJob job = new WorkflowJob(uuid, bucket, prefix, id, name, xml);	
 
-		job.setCommand(command);
-		job.setLongJob(localExec);
-		if (longJobs.contains(name))
+		for (int i = 0; i < cw.size(); i++)
 		{
-			job.setLongJob(true);
+			WorkflowJob job = new WorkflowJob(uuid, bucket, prefix, cw.ids[i], cw.names[i]);
+			job.setCommand(cw.commands[i]);
+			job.setFiles(cw.binFiles[i], cw.inFiles[i], cw.outFiles[i]);
+			job.setLongJob(localExec || (cw.flags[i] & CompiledWorkflow.FLAG_LONG_JOB) != 0);
+			job.index = i;
+			jobList.add(job);
+			jobs.put(job.jobId, job);
 		}
-		jobs.put(id, job);
+		dag.setChildren(cw.childOffsets, cw.children);
+		files = cw.files;
+		files.index(jobList);
+		logger.info("Loaded compiled workflow " + compiledFile());
+		return true;
 	}
-	
-	public String createXML(String workflow, String bucket, String prefix, String id, String name, String command, String binFiles, String inFiles, String outFiles)
-	{
-		Document document = DocumentHelper.createDocument();
-		Element root = document.addElement( "root" );
-		root.addAttribute("workflow", workflow);
-		root.addAttribute("bucket",   bucket);
-		root.addAttribute("prefix",   prefix);
-		root.addAttribute("id",       id);		
-		root.addAttribute("name",     name);		
-		root.addAttribute("command",  command);		
-		root.addAttribute("binFiles", binFiles);		
-		root.addAttribute("inFiles",  inFiles);		
-		root.addAttribute("outFiles", outFiles);		
-		root.addAttribute("ackQueue", ackQueue);		
-		
-        return document.asXML();
-      }
-      
-      public void writeJobInfo(String bucket, String prefix, String id, String xml)
-      {
-	      	String key  = prefix + "/jobs/" + id;
-
-		  	try
-			{
-				logger.debug("Uploading job definition " + id);
-				client.putObject(bucket, key, xml);
-			} catch (Exception e)
-			{
-				System.out.println(e.getMessage());
-				e.printStackTrace();
-			}
 
-      }
+	
+	/**
+	 *
+	 * Write the parsed workflow to the cache folder, so that the next run can skip parsing.
+	 *
+	 */
 
-	public void download(String bucket, String key, String filename) 
+	public void writeCompiled()
 	{
+		if (cacheDir == null)
+		{
+			return;
+		}
+		CompiledWorkflow cw = new CompiledWorkflow(compiledKey(), jobList.size());
+		for (WorkflowJob job : jobList)
+		{
+			cw.ids[job.index]      = job.jobId;
+			cw.names[job.index]    = job.jobName;
+			cw.commands[job.index] = job.jobCommand;
+			cw.binFiles[job.index] = job.binFiles;
+			cw.inFiles[job.index]  = job.inFiles;
+			cw.outFiles[job.index] = job.outFiles;
+			cw.flags[job.index]    = longJobs.contains(job.jobName) ? CompiledWorkflow.FLAG_LONG_JOB : 0;
+		}
+		cw.childOffsets = dag.childOffsets;
+		cw.children     = dag.children;
+		cw.files        = files;
 		try
 		{
-			S3Object object = client.getObject(new GetObjectRequest(bucket, key));
-			InputStream in = object.getObjectContent();
-			OutputStream out = new FileOutputStream(filename);
-			IOUtils.copy(in, out);
-			in.close();
-			out.close();
+			cw.write(compiledFile());
 		} catch (Exception e)
 		{
-			System.out.println(e.getMessage());
-			e.printStackTrace();
+			logger.warn("Unable to write compiled workflow: " + e.getMessage());
 		}
 	}
-
 }
-
-
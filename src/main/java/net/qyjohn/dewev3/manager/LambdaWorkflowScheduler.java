@@ -2,66 +2,166 @@ package net.qyjohn.dewev3.manager;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import com.amazonaws.services.s3.*;
-import com.amazonaws.services.s3.model.*;
-import com.amazonaws.services.kinesis.*;
-import com.amazonaws.services.kinesis.model.*;
-import com.amazonaws.services.sqs.*;
-import com.amazonaws.services.sqs.model.*;
-import net.qyjohn.dewev3.worker.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.qyjohn.dewev3.worker.JobTiming;
 import org.apache.log4j.Logger;
 
+/**
+ *
+ * Schedules one workflow. The job transport, the dispatch policy and the job
+ * cost model belong to the LambdaSchedulerService, which may run many
+ * workflows at the same time; the DAG state, the ready queue and the
+ * in-flight jobs belong to the workflow.
+ *
+ */
+
 public class LambdaWorkflowScheduler extends Thread
 {
-	public AmazonKinesisClient kinesisClient = new AmazonKinesisClient();
-	public AmazonSQSClient sqsClient = new AmazonSQSClient();
-	String jobStream, ackStream;
-	String longQueue, ackQueue, deweComm;
-	List<Shard> ackShards = new ArrayList<Shard>();
-	Map<String, String> ackIterators = new HashMap<String, String>();
-
-	LambdaWorkflow workflow;
-	String uuid, s3Bucket, s3Prefix, tempDir;
-	boolean localExec, cleanUp, completed;
+	LambdaSchedulerService service;
+	JobTransport transport;
+	Workflow workflow;
+	String uuid;
+	volatile boolean completed;
+	CountDownLatch done = new CountDownLatch(1);
 	public String caching = "false";
-	public int localPerc=0;
-	
-	LambdaLocalWorkerV2 worker;
+	DispatchPolicy policy;
+	int clusterSize;
+	boolean affinity;	// data-affinity partition keys
+	HashMap<String, Integer> levelSizes = new HashMap<String, Integer>();	// jobs per transformation
+	double clusterCost;
+
+	// FaaS jobs gathered for clusterWindow ms, from any number of ACKs, before
+	// the clusters are cut. The clusterer is guarded by itself.
+	JobClusterer clusterer;
+	long clusterWindow;
+	boolean clusterFlushPending;
+
+	// Ready jobs are dispatched in decreasing order of upward rank. Both the
+	// queue and the DAG counters are shared by the ACK receiving threads.
+	JobCostModel costModel;
+	PriorityBlockingQueue<WorkflowJob> readyJobs = new PriorityBlockingQueue<WorkflowJob>(1024, new Comparator<WorkflowJob>()
+	{
+		@Override
+		public int compare(WorkflowJob a, WorkflowJob b)
+		{
+			return Float.compare(b.rank, a.rank);
+		}
+	});
+	AtomicLongArray dispatchTimes;
+
+	// Completion times and worker phase timings, for the makespan report and the trace
+	AtomicLongArray completeTimes;
+	AtomicReferenceArray<JobTiming> timings;
+	String traceDir;
+
+	// Write-ahead log of the completed jobs, to resume the workflow after a crash
+	WorkflowCheckpoint checkpoint;
+
+	// Results of earlier runs, by the content of the job inputs
+	JobMemoizer memoizer;
+
+	// Speculative re-execution of the jobs running longer than a percentile of their transformation
+	Map<WorkflowJob, Boolean> inFlight = new ConcurrentHashMap<WorkflowJob, Boolean>();
+	JobRuntimes runtimes;
+	boolean speculation;
+	double speculationPercentile, speculationFactor, speculationMin;
+
 	final static Logger logger = Logger.getLogger(LambdaWorkflowScheduler.class);
 	
 	Date d1, d2;
 	
+	/**
+	 *
+	 * Run a workflow on its own, with a service of its own.
+	 *
+	 */
+
 	public LambdaWorkflowScheduler(String bucket, String prefix)
+	{
+		this(bucket, prefix, new LambdaSchedulerService());
+	}
+
+	public LambdaWorkflowScheduler(String bucket, String prefix, LambdaSchedulerService service)
+	{
+		this(bucket, prefix, null, service);
+	}
+
+	/**
+	 *
+	 * Run a workflow with a given UUID. With checkpointDir set, a workflow
+	 * resumed with the UUID of an earlier run skips the jobs that run completed.
+	 * A null UUID starts a new run.
+	 *
+	 */
+
+	public LambdaWorkflowScheduler(String bucket, String prefix, String uuid, LambdaSchedulerService service)
 	{
 		try
 		{
-			// System Properties
-			Properties prop = new Properties();
-			InputStream input = new FileInputStream("config.properties");
-			prop.load(input);
-			jobStream = prop.getProperty("jobStream");
-			longQueue = prop.getProperty("longQueue");
-			ackQueue = prop.getProperty("ackQueue");
-			localExec = Boolean.parseBoolean(prop.getProperty("localExec"));
-			cleanUp   = Boolean.parseBoolean(prop.getProperty("cleanUp"));
-			localPerc = Integer.parseInt(prop.getProperty("localPerc"));
-	
-			// House keeping
-			purgeQueue();
+			// Shared by all the workflows of the service
+			this.service = service;
+			Properties prop = service.prop;
+			transport  = service.transport;
+			policy     = service.policy;
+			costModel  = service.costModel;
+			runtimes   = service.runtimes;
+
+			clusterSize = Integer.parseInt(prop.getProperty("clusterSize", "1"));	// 1 disables clustering
+			clusterCost = Double.parseDouble(prop.getProperty("clusterCost", "0"));
+			affinity    = prop.getProperty("partitionKeys", "random").equals("affinity");
+			speculation = Boolean.parseBoolean(prop.getProperty("speculation", "false"));
+			speculationPercentile = Double.parseDouble(prop.getProperty("speculationPercentile", "0.95"));
+			speculationFactor     = Double.parseDouble(prop.getProperty("speculationFactor", "2.0"));
+			speculationMin        = Double.parseDouble(prop.getProperty("speculationMin", "5"));	// seconds
+			traceDir = prop.getProperty("traceDir");	// execution traces, disabled if not set
+			clusterWindow = Long.parseLong(prop.getProperty("clusterWindow", "100"));	// ms
+			if (!transport.supportsBatches())
+			{
+				clusterSize = 1;
+			}
+			clusterer = new JobClusterer(clusterSize, clusterCost, costModel);
 
-			// Parsing workflow definitions
+			// Parsing workflow definitions. The workflow UUID also names Pub/Sub topics,
+			// which have to start with a letter.
 			logger.info("Parsing workflow definitions...");
-			uuid = UUID.randomUUID().toString();
-			workflow = new LambdaWorkflow(uuid, bucket, prefix, localExec, ackQueue);
+			this.uuid = (uuid != null) ? uuid : "DEWEv3-" + UUID.randomUUID().toString();
+			workflow = transport.loadWorkflow(this.uuid, bucket, prefix);
+			workflow.computeRanks(costModel);
+			if (transport.supportsBatches() && Boolean.parseBoolean(prop.getProperty("chainFusion", "false")))
+			{
+				workflow.fuseChains();
+			}
+			for (WorkflowJob job : workflow.jobList)
+			{
+				Integer n = levelSizes.get(job.jobName);
+				levelSizes.put(job.jobName, (n == null) ? 1 : n + 1);
+			}
+			dispatchTimes = new AtomicLongArray(workflow.dag.size);
+			completeTimes = new AtomicLongArray(workflow.dag.size);
+			timings = new AtomicReferenceArray<JobTiming>(workflow.dag.size);
+			if (prop.getProperty("checkpointDir") != null)
+			{
+				checkpoint = new WorkflowCheckpoint(new File(prop.getProperty("checkpointDir")), workflow,
+					Integer.parseInt(prop.getProperty("checkpointCompaction", "1000")),
+					Boolean.parseBoolean(prop.getProperty("checkpointSync", "false")));
+				int recovered = checkpoint.recover();
+				if (recovered > 0)
+				{
+					logger.info("Resuming workflow " + this.uuid + ", " + recovered + " of " + workflow.dag.size + " jobs already completed.");
+				}
+			}
+			if (Boolean.parseBoolean(prop.getProperty("memoization", "false")))
+			{
+				restoreFromCache(prop);
+			}
 			completed  = false;
-			
-			// Run one instance of the DeweWorker in the background
-			tempDir = "/tmp/" + UUID.randomUUID().toString();
-			Process p = Runtime.getRuntime().exec("mkdir -p " + tempDir);
-			p.waitFor();
-			worker = new LambdaLocalWorkerV2(tempDir);
-			worker.start();
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());
@@ -70,66 +170,182 @@ public class LambdaWorkflowScheduler extends Thread
 	}
 	
 	
+	/**
+	 *
+	 * Complete the jobs whose results are in the memoization cache, instead of dispatching them.
+	 *
+	 */
+
+	void restoreFromCache(Properties prop) throws Exception
+	{
+		ObjectStore store = transport.objectStore(workflow);
+		if (store == null)
+		{
+			logger.warn("The job transport has no object store, memoization is disabled.");
+			return;
+		}
+		memoizer = new JobMemoizer(workflow, store, prop.getProperty("memoPrefix", "memo"),
+			Integer.parseInt(prop.getProperty("memoThreads", "16")));
+		List<WorkflowJob> hits = memoizer.restore();
+		if (!hits.isEmpty())
+		{
+			logger.info(hits.size() + " of " + workflow.dag.size + " jobs restored from the memoization cache.");
+			if (checkpoint != null)
+			{
+				checkpoint.completed(hits);
+			}
+		}
+	}
+
+
 	public void initialDispatch()
 	{
 		d1 = new Date();
-		logger.info("Begin workflow execution.");
-		for (WorkflowJob job : workflow.jobs.values())	
+		logger.info("Begin workflow execution " + uuid + ".");
+		if (speculation)
 		{
-			if (job.ready)
+			new StragglerMonitor().start();
+		}
+		for (WorkflowJob job : workflow.jobList)	
+		{
+			if (workflow.dag.isReady(job.index))
 			{
-				dispatchJob(job.jobId);
+				readyJobs.add(job);
 			}
 		}	
+		dispatchReadyJobs();
+		if (workflow.isEmpty())
+		{
+			finish();
+		}
 	}
 	
 	
 	/**
 	 *
-	 * Publishing a job to the jobStream for the worker node (a Lambda function) to pickup.
+	 * Dispatch the ready jobs, highest upward rank first. With clustering enabled,
+	 * the jobs going to the Lambda functions are held for clusterWindow ms, so that
+	 * the jobs of a wide level released by different ACKs end up in the same
+	 * clusters, then grouped by transformation.
 	 *
 	 */
 	 
-	public void dispatchJob(String id)
+	public void dispatchReadyJobs()
 	{
-		WorkflowJob job = workflow.jobs.get(id);
-
-		if (job != null)
+		WorkflowJob job;
+		float criticalPath = -1;
+		boolean clustered = false;
+		while ((job = readyJobs.poll()) != null)
 		{
-			logger.info("Dispatching " + job.jobId + ":\t" + job.jobName);
-			boolean success = false;
-			while (!success)
+			if (criticalPath < 0)
 			{
-				try
+				criticalPath = job.rank;
+			}
+			if (workflow.dag.chainNext(job.index) >= 0)
+			{
+				dispatchChain(job, criticalPath);
+			}
+			else if (clusterer.isEnabled())
+			{
+				if (policy.dispatch(job, criticalPath))
 				{
-					if (job.isLongJob)
-					{
-						sqsClient.sendMessage(longQueue, job.jobXML);				
-					}
-					else
+					logger.info("Dispatching " + job.jobId + ":\t" + job.jobName);
+					dispatched(job);
+					transport.publishLongJob(job, workflow.descriptor.toXML(job));
+				}
+				else
+				{
+					synchronized (clusterer)
 					{
-						int rand = new Random().nextInt(100);
-						// Send localPerc% of jobs to the long queue for local execution
-						if (rand < localPerc) 
-						{
-							sqsClient.sendMessage(longQueue, job.jobXML);
-						}
-						else
-						{
-							byte[] bytes = job.jobXML.getBytes();
-							PutRecordRequest putRecord = new PutRecordRequest();
-							putRecord.setStreamName(jobStream);
-							putRecord.setPartitionKey(UUID.randomUUID().toString());
-							putRecord.setData(ByteBuffer.wrap(bytes));
-							kinesisClient.putRecord(putRecord);
-						}
+						clusterer.add(job);
 					}
-					success = true;
-				} catch (Exception e) 
+					clustered = true;
+				}
+			}
+			else
+			{
+				dispatchJob(job, criticalPath);
+			}
+		}
+		if (clustered)
+		{
+			scheduleClusters();
+		}
+	}
+
+
+	/**
+	 *
+	 * Cut the clusters once the window opened by the first gathered job closes.
+	 *
+	 */
+
+	void scheduleClusters()
+	{
+		if (clusterWindow <= 0)
+		{
+			dispatchClusters();
+			return;
+		}
+		synchronized (clusterer)
+		{
+			if (clusterFlushPending || clusterer.isEmpty())
+			{
+				return;
+			}
+			clusterFlushPending = true;
+		}
+		service.timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					dispatchClusters();
+				} catch (Exception e)
 				{
 					System.out.println(e.getMessage());
-					e.printStackTrace();	
-				}				
+					e.printStackTrace();
+				}
+			}
+		}, clusterWindow, TimeUnit.MILLISECONDS);
+	}
+
+	void dispatchClusters()
+	{
+		List<List<WorkflowJob>> clusters;
+		synchronized (clusterer)
+		{
+			clusterFlushPending = false;
+			clusters = clusterer.drain();
+		}
+		for (List<WorkflowJob> cluster : clusters)
+		{
+			dispatchCluster(cluster);
+		}
+	}
+	
+	
+	/**
+	 *
+	 * Publishing a job for the worker node (a Lambda function) or the local worker to pickup.
+	 *
+	 */
+	 
+	public void dispatchJob(WorkflowJob job, float criticalPath)
+	{
+		if (job != null)
+		{
+			logger.info("Dispatching " + job.jobId + ":\t" + job.jobName);
+			String jobXML = workflow.descriptor.toXML(job);
+			dispatched(job);
+			if (policy.dispatch(job, criticalPath))
+			{
+				transport.publishLongJob(job, jobXML);
+			}
+			else
+			{
+				transport.publishJob(job, jobXML, partitionKey(job));
 			}
 		}		
 	}
@@ -137,131 +353,342 @@ public class LambdaWorkflowScheduler extends Thread
 	
 	/**
 	 *
-	 * The worker node (a Lambda function) sends an ACK message to the ackStream, indicating a particular job is now complete.
+	 * Publishing a fused chain of jobs, starting with a ready job, as a single unit.
+	 *
+	 */
+	 
+	public void dispatchChain(WorkflowJob head, float criticalPath)
+	{
+		List<WorkflowJob> chain = workflow.getChain(head);
+		logger.info("Dispatching a chain of " + chain.size() + " jobs from " + head.jobId + ":\t" + head.jobName);
+		String jobXML = workflow.descriptor.toChainXML(chain);
+		dispatched(head);
+		if (policy.dispatch(head, criticalPath))
+		{
+			transport.publishLongJob(head, jobXML);
+		}
+		else
+		{
+			transport.publishJob(head, jobXML, partitionKey(head));
+		}
+	}
+	
+	
+	/**
+	 *
+	 * Publishing a cluster of jobs as a single descriptor, executed by a single Lambda invocation.
+	 *
+	 */
+	 
+	public void dispatchCluster(List<WorkflowJob> cluster)
+	{
+		for (WorkflowJob job : cluster)
+		{
+			dispatched(job);
+		}
+		if (cluster.size() == 1)
+		{
+			WorkflowJob job = cluster.get(0);
+			logger.info("Dispatching " + job.jobId + ":\t" + job.jobName);
+			transport.publishJob(job, workflow.descriptor.toXML(job), partitionKey(job));
+		}
+		else
+		{
+			logger.info("Dispatching a cluster of " + cluster.size() + " " + cluster.get(0).jobName + " jobs");
+			transport.publishJob(cluster.get(0), workflow.descriptor.toXML(cluster), partitionKey(cluster.get(0)));
+		}
+	}
+	
+	
+	/**
+	 *
+	 * Record the dispatch of a job, or of the head of a chain.
+	 *
+	 */
+	 
+	public void dispatched(WorkflowJob job)
+	{
+		dispatchTimes.set(job.index, System.currentTimeMillis());
+		inFlight.put(job, Boolean.TRUE);
+	}
+	
+	
+	/**
+	 *
+	 * Dispatch a speculative copy of a straggler (with the rest of its chain) to the
+	 * other execution tier, through the dispatch policy so that a local copy holds
+	 * a local slot. Whichever copy ACKs first completes the job, the ACK of the
+	 * other one only gives back its slot.
+	 *
+	 */
+	 
+	public void speculate(WorkflowJob job, double elapsed)
+	{
+		job.speculated = true;
+		policy.speculated(job);
+		List<WorkflowJob> chain = workflow.getChain(job);
+		String jobXML = (chain.size() > 1) ? workflow.descriptor.toChainXML(chain) : workflow.descriptor.toXML(job);
+		logger.warn(job.jobId + ":\t" + job.jobName + " still running after " + elapsed + " seconds, speculating on the " 
+			+ (job.local ? "Lambda" : "local") + " workers");
+		if (job.local)
+		{
+			transport.publishJob(job, jobXML, partitionKey(job));
+		}
+		else
+		{
+			transport.publishLongJob(job, jobXML);
+		}
+	}
+	
+	
+	/**
+	 *
+	 * The Kinesis partition key of a job. With data-affinity keys, jobs hash on the
+	 * least shared of the inputs they share with other jobs, so that a few jobs sharing
+	 * inputs land on the same shard, and on the same warm Lambda container caching
+	 * those inputs. Inputs read by all the jobs of the transformation, or by most of
+	 * the workflow, are not used. The key is a hash of the file name, as Kinesis keys
+	 * are limited to 256 characters. Jobs with no such input get a random key.
+	 *
+	 */
+	 
+	public String partitionKey(WorkflowJob job)
+	{
+		if (affinity)
+		{
+			WorkflowFiles files = workflow.files;
+			int limit = Math.min(levelSizes.get(job.jobName), workflow.dag.size / 2 + 1);
+			int f = files.affinityFile(job.inFiles, limit);
+			if (f >= 0)
+			{
+				return UUID.nameUUIDFromBytes(files.names[f].getBytes(StandardCharsets.UTF_8)).toString();
+			}
+		}
+		return UUID.randomUUID().toString();
+	}
+	
+	
+	/**
+	 *
+	 * The worker node (a Lambda function) sends an ACK message, indicating a particular job is now complete.
+	 *
+	 * This is called concurrently by the ACK receiving threads of the transport. The CAS in dag.complete() lets only
+	 * the first ACK of a job through, and each child is queued by the one thread whose
+	 * dag.release() brings its pending parent count to zero, so no lock is needed.
+	 *
+	 * A fused chain is only ACKed once all its jobs have run, so the ACK of any member
+	 * completes the whole chain, head first. The ACKs of the other members are duplicates.
+	 *
+	 * The timing is the phase timing sent by the worker, null if the worker did not send it.
+	 * The tier is the tier that ran the job, null if the worker did not say.
 	 *
 	 */
 	 
 	public void setJobAsComplete(String id)
+	{
+		setJobAsComplete(id, null, null);
+	}
+
+	public void setJobAsComplete(String id, JobTiming timing, String tier)
 	{		
 		WorkflowJob job = workflow.jobs.get(id);
+		WorkflowDag dag = workflow.dag;
 
-		if (job != null)
+		// Ignore unknown jobs and duplicated ACKs
+		int j = (job == null) ? -1 : dag.chainHead(job.index);
+		if ((j >= 0) && dag.complete(j))
 		{
-			// Get a list of the children jobs
-			for (String child_id : job.childrenJobs) 
+			WorkflowJob head = workflow.jobList.get(j);
+			if (checkpoint != null)
+			{
+				checkpoint.completed(workflow.getChain(head));
+			}
+			inFlight.remove(head);
+			long now = System.currentTimeMillis(), dispatched = dispatchTimes.get(j);
+			double seconds = (now - dispatched) / 1000.0;
+			if ((dag.chainNext(j) < 0) && (policy.isLocal(head, tier, true) == head.local))
+			{
+				costModel.observe(head.jobName, seconds);
+				runtimes.observe(head.jobName, seconds);
+			}
+			policy.completed(head, seconds, tier);
+
+			while (j >= 0)
 			{
-				// Get a list of the jobs depending on a particular output file
-				WorkflowJob childJob = workflow.jobs.get(child_id);
-				// Remove this depending parent job
-				childJob.removeParent(id);
-				if (childJob.ready)
+				// The jobs of a chain share the tier, dispatch, completion and phase timings of the chain
+				workflow.jobList.get(j).local = head.local;
+				dispatchTimes.set(j, dispatched);
+				completeTimes.set(j, now);
+				timings.set(j, timing);
+				if (memoizer != null)
 				{
-					dispatchJob(childJob.jobId);
+					memoizer.save(workflow.jobList.get(j));
 				}
+
+				// Release the children jobs, queuing those with no more pending parents
+				int next = dag.chainNext(j);
+				for (int i = dag.childOffsets[j]; i < dag.childOffsets[j + 1]; i++) 
+				{
+					int child = dag.children[i];
+					if (dag.release(child) && (child != next))
+					{
+						readyJobs.add(workflow.jobList.get(child));
+					}
+				}
+				if (next >= 0)
+				{
+					dag.complete(next);
+				}
+				j = next;
 			}
-			workflow.jobs.remove(id);
-		}	
+			dispatchReadyJobs();
+		}
+		else if (j >= 0)
+		{
+			policy.duplicate(workflow.jobList.get(j), tier);
+		}
 		
 		if (workflow.isEmpty())
 		{
-			completed = true;
+			finish();
 		}	
 	}
 	
+	
 	/**
 	 *
-	 * The run() method.
+	 * Called once, when the last job of the workflow has completed.
 	 *
 	 */
 	 
-	public void run()
+	synchronized void finish()
 	{
-		while (!completed)
+		if (completed)
 		{
-			// Pulling the ackQueue
-			try
-			{
-				ReceiveMessageResult result = sqsClient.receiveMessage(ackQueue);
-				for (Message message : result.getMessages())
-				{
-					String job = message.getBody();
-					logger.info(job + " is now completed.");
-					setJobAsComplete(job);
-					sqsClient.deleteMessage(ackQueue, message.getReceiptHandle());
-				}				
-			} catch (Exception e)
-			{
-			}
+			return;
 		}
-		logger.info("Workflow is now completed.");
-
+		completed = true;
+		logger.info("Workflow " + uuid + " is now completed.");
 		d2 = new Date();
 		long seconds = (d2.getTime()-d1.getTime())/1000;
 		System.out.println("\n\nTotal execution time: " + seconds + " seconds.\n\n");
-
-		// delete the temp foler
-		if (cleanUp)
+		new MakespanReport(workflow, d1.getTime(), d2.getTime(), dispatchTimes, completeTimes, timings).print(System.out);
+		if (traceDir != null)
 		{
+			File trace = new File(traceDir, uuid + ".trace");
 			try
 			{
-				Process p = Runtime.getRuntime().exec("rm -Rf " + tempDir);
-				p.waitFor();
+				WorkflowTrace.write(trace, workflow, d1.getTime(), dispatchTimes, completeTimes, timings);
+				logger.info("Execution trace written to " + trace);
 			} catch (Exception e)
 			{
-				System.out.println(e.getMessage());
-				e.printStackTrace();	
+				logger.warn("Unable to write execution trace: " + e.getMessage());
 			}
 		}
-		System.exit(0);
+		if (checkpoint != null)
+		{
+			checkpoint.delete();
+		}
+		if (memoizer != null)
+		{
+			memoizer.shutdown();
+		}
+		policy.finished(workflow.jobList);
+		service.completed(this);
+		done.countDown();
+	}
+	
+	/**
+	 *
+	 * The run() method, waiting for the workflow to complete.
+	 *
+	 */
+	 
+	public void run()
+	{
+		try
+		{
+			done.await();
+		} catch (InterruptedException e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();	
+		}
 	}
 	
 	
-	class AckPuller extends Thread
+	/**
+	 *
+	 * Checks the in-flight jobs once a second. A job running longer than speculationFactor
+	 * times the speculationPercentile run time of its transformation (the cost estimate
+	 * until enough jobs have completed), and at least speculationMin seconds, gets one
+	 * speculative copy. A fused chain is expected to take the sum of the run times of
+	 * its jobs. Long jobs only run locally and are never speculated.
+	 *
+	 */
+
+	class StragglerMonitor extends Thread
 	{
-		public void run()
+		StragglerMonitor()
 		{
-			AmazonSQSClient c = new AmazonSQSClient();
+			setDaemon(true);
+		}
 
+		/**
+		 *
+		 * The speculationPercentile run time of the transformation of a job, or its cost estimate
+		 *
+		 */
+
+		double expectedRuntime(WorkflowJob job)
+		{
+			double expected = runtimes.percentile(job.jobName, speculationPercentile);
+			return (expected < 0) ? costModel.getCost(job.jobName) : expected;
+		}
+
+		public void run()
+		{
 			while (!completed)
 			{
-				// Pulling the ackQueue
 				try
 				{
-					ReceiveMessageResult result = c.receiveMessage(ackQueue);
-					for (Message message : result.getMessages())
+					sleep(1000);
+					long now = System.currentTimeMillis();
+					for (WorkflowJob job : inFlight.keySet())
 					{
-						String job = message.getBody();
-						logger.info(job + " is now completed.");
-						setJobAsComplete(job);
-						c.deleteMessage(ackQueue, message.getReceiptHandle());
-					}				
+						if (job.speculated || job.isLongJob)
+						{
+							continue;
+						}
+						double expected = 0;
+						for (WorkflowJob member : workflow.getChain(job))
+						{
+							expected += expectedRuntime(member);
+						}
+						double elapsed = (now - dispatchTimes.get(job.index)) / 1000.0;
+						if (elapsed > Math.max(speculationMin, speculationFactor * expected))
+						{
+							speculate(job, elapsed);
+						}
+					}
 				} catch (Exception e)
 				{
-				}				
-			}	
-		}		
-	}
-	public void purgeQueue()
-	{
-			try
-			{
-				PurgeQueueRequest req1 = new PurgeQueueRequest(longQueue);
-				sqsClient.purgeQueue(req1);
-				PurgeQueueRequest req2 = new PurgeQueueRequest(ackQueue);
-				sqsClient.purgeQueue(req2);
-			} catch (Exception e)
-			{
+					System.out.println(e.getMessage());
+					e.printStackTrace();	
+				}
 			}
+		}
 	}
 
-
 	public static void main(String[] args)
 	{
 		try
 		{
-			LambdaWorkflowScheduler scheduler = new LambdaWorkflowScheduler(args[0], args[1]);
-			scheduler.initialDispatch();
+			LambdaSchedulerService service = new LambdaSchedulerService();
+			LambdaWorkflowScheduler scheduler = service.submit(args[0], args[1], (args.length > 2) ? args[2] : null);
 			scheduler.run();
+			service.shutdown();
+			System.exit(0);
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());
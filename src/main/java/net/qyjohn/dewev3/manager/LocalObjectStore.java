@@ -0,0 +1,62 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.security.MessageDigest;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * An ObjectStore on a local folder, for the in-process transport. The hash
+ * of a file is the SHA-256 of its content.
+ *
+ */
+
+public class LocalObjectStore implements ObjectStore
+{
+	File root;
+
+	public LocalObjectStore(File root)
+	{
+		this.root = root;
+	}
+
+	public String hash(String key) throws Exception
+	{
+		File file = new File(root, key);
+		if (!file.isFile())
+		{
+			return null;
+		}
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+			{
+				digest.update(buffer, 0, n);
+			}
+		} finally
+		{
+			in.close();
+		}
+		return JobMemoizer.hex(digest.digest());
+	}
+
+	public String read(String key) throws Exception
+	{
+		File file = new File(root, key);
+		return file.isFile() ? FileUtils.readFileToString(file, "UTF-8") : null;
+	}
+
+	public void write(String key, String content) throws Exception
+	{
+		FileUtils.writeStringToFile(new File(root, key), content, "UTF-8");
+	}
+
+	public void copy(String from, String to) throws Exception
+	{
+		FileUtils.copyFile(new File(root, from), new File(root, to));
+	}
+}
@@ -0,0 +1,51 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * A workflow loaded from a local folder, for the in-process transport. The
+ * bucket is a base folder and the prefix a sub-folder, holding dag.xml (or
+ * dag.xml.gz) and the optional long.xml, with the same layout as in S3.
+ *
+ */
+
+public class LocalWorkflow extends Workflow
+{
+	public File folder;
+	final static Logger logger = Logger.getLogger(LocalWorkflow.class);
+
+
+	public LocalWorkflow(String uuid, String bucket, String prefix, boolean localExec)
+	{
+		super(uuid, bucket, prefix, localExec);
+		folder = new File(bucket, prefix);
+
+		try
+		{
+			File longXml = new File(folder, "long.xml");
+			if (longXml.exists())
+			{
+				addLongJobs(FileUtils.readFileToString(longXml));
+			}
+			File dagXml = new File(folder, "dag.xml");
+			if (!dagXml.exists())
+			{
+				dagXml = new File(folder, "dag.xml.gz");
+			}
+			parser.parse(new FileInputStream(dagXml), this);
+			dag.compile();
+			files.index(jobList);
+			descriptor = new JobDescriptor(uuid, bucket, prefix, null, files);
+			descriptor.resources = resources;
+			logger.info("The workflow has " + dag.size + " jobs, " + dag.edgeCount() + " dependencies and " + files.size + " files.");
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
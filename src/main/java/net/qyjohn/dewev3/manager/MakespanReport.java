@@ -0,0 +1,266 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.qyjohn.dewev3.worker.JobTiming;
+
+/**
+ *
+ * Where the makespan of a workflow went, printed when the workflow completes.
+ *
+ * The time of a job is split into phases: queue (from the dispatch until a
+ * worker starts on the descriptor, including the start of a Lambda function),
+ * bin, in, exec and out (from the JobTiming sent by the worker), and ack (from
+ * the ACK being sent until the scheduler handles it). All the jobs of a
+ * cluster or a chain share the timings of their descriptor.
+ *
+ * For every transformation, the report gives the mean, median, 95th percentile
+ * and maximum of each phase, then the share of each phase over all the jobs.
+ * It then walks back the critical path from the last job to complete, through
+ * the parent that completed last, and splits the makespan along that path
+ * into the same phases, plus the scheduling gaps between the completion of a
+ * job and the dispatch of the next one. Jobs ACKed without timings are only
+ * counted in the total.
+ *
+ */
+
+public class MakespanReport
+{
+	public final static String[] PHASES = {"queue", "bin", "in", "exec", "out", "ack"};
+
+	Workflow workflow;
+	long begin, end;
+	long[] dispatched, completed;
+	long[][] phases;	// per job, in the order of PHASES, null without timings
+
+	public MakespanReport(Workflow workflow, long begin, long end, AtomicLongArray dispatchTimes, AtomicLongArray completeTimes, AtomicReferenceArray<JobTiming> timings)
+	{
+		this.workflow = workflow;
+		this.begin = begin;
+		this.end = end;
+		int n = workflow.dag.size;
+		dispatched = new long[n];
+		completed  = new long[n];
+		phases     = new long[n][];
+		for (int j = 0; j < n; j++)
+		{
+			dispatched[j] = dispatchTimes.get(j);
+			completed[j]  = completeTimes.get(j);
+			JobTiming t = timings.get(j);
+			if ((t != null) && (dispatched[j] > 0) && (completed[j] > 0))
+			{
+				// Clock skew between the worker and the scheduler can make queue and ack negative
+				phases[j] = new long[] {Math.max(0, t.start - dispatched[j]), t.bin, t.in, t.exec, t.out, Math.max(0, completed[j] - t.sent)};
+			}
+		}
+	}
+
+
+	public void print(PrintStream out)
+	{
+		printTransformations(out);
+		printCriticalPath(out);
+	}
+
+
+	/**
+	 *
+	 * The distribution of each phase for every transformation, and the share of
+	 * each phase over all the jobs.
+	 *
+	 */
+
+	public void printTransformations(PrintStream out)
+	{
+		TreeMap<String, List<Integer>> byName = new TreeMap<String, List<Integer>>();
+		for (WorkflowJob job : workflow.jobList)
+		{
+			List<Integer> list = byName.get(job.jobName);
+			if (list == null)
+			{
+				list = new ArrayList<Integer>();
+				byName.put(job.jobName, list);
+			}
+			list.add(job.index);
+		}
+
+		out.println("Job phases (ms):");
+		out.println(String.format("%-16s %6s %-6s %9s %9s %9s %9s", "Transformation", "Jobs", "Phase", "Mean", "P50", "P95", "Max"));
+		long[] share = new long[PHASES.length];
+		for (Map.Entry<String, List<Integer>> entry : byName.entrySet())
+		{
+			List<Integer> jobs = entry.getValue();
+			printPhase(out, entry.getKey(), jobs.size(), "total", totals(jobs));
+			for (int p = 0; p < PHASES.length; p++)
+			{
+				List<Long> values = new ArrayList<Long>();
+				for (int j : jobs)
+				{
+					if (phases[j] != null)
+					{
+						values.add(phases[j][p]);
+						share[p] += phases[j][p];
+					}
+				}
+				printPhase(out, "", 0, PHASES[p], values);
+			}
+		}
+
+		long sum = 0;
+		for (long s : share)
+		{
+			sum += s;
+		}
+		if (sum > 0)
+		{
+			StringBuilder sb = new StringBuilder("Share of job time:");
+			for (int p = 0; p < PHASES.length; p++)
+			{
+				sb.append(String.format(" %s %.1f%%", PHASES[p], 100.0 * share[p] / sum));
+			}
+			out.println(sb.toString());
+			out.println(String.format("Storage I/O (bin, in, out) %.1f%%, execution %.1f%%",
+				100.0 * (share[1] + share[2] + share[4]) / sum, 100.0 * share[3] / sum));
+		}
+		out.println();
+	}
+
+	List<Long> totals(List<Integer> jobs)
+	{
+		List<Long> values = new ArrayList<Long>();
+		for (int j : jobs)
+		{
+			if ((dispatched[j] > 0) && (completed[j] > 0))
+			{
+				values.add(completed[j] - dispatched[j]);
+			}
+		}
+		return values;
+	}
+
+	void printPhase(PrintStream out, String name, int jobs, String phase, List<Long> values)
+	{
+		if (values.isEmpty())
+		{
+			return;
+		}
+		Collections.sort(values);
+		long sum = 0;
+		for (long v : values)
+		{
+			sum += v;
+		}
+		int n = values.size();
+		out.println(String.format("%-16s %6s %-6s %9d %9d %9d %9d", name, (jobs > 0) ? Integer.toString(jobs) : "", phase,
+			sum / n, values.get((n - 1) / 2), values.get((n - 1) * 95 / 100), values.get(n - 1)));
+	}
+
+
+	/**
+	 *
+	 * The split of the makespan along the critical path, as executed.
+	 *
+	 */
+
+	public void printCriticalPath(PrintStream out)
+	{
+		WorkflowDag dag = workflow.dag;
+		int n = dag.size;
+		if (n == 0)
+		{
+			return;
+		}
+
+		// Parents of every job, from the children lists
+		int[] parentOffsets = new int[n + 1];
+		for (int i = 0; i < dag.childOffsets[n]; i++)
+		{
+			parentOffsets[dag.children[i] + 1]++;
+		}
+		for (int j = 0; j < n; j++)
+		{
+			parentOffsets[j + 1] += parentOffsets[j];
+		}
+		int[] parents = new int[dag.childOffsets[n]];
+		int[] fill = Arrays.copyOf(parentOffsets, n);
+		for (int j = 0; j < n; j++)
+		{
+			for (int i = dag.childOffsets[j]; i < dag.childOffsets[j + 1]; i++)
+			{
+				parents[fill[dag.children[i]]++] = j;
+			}
+		}
+
+		// Walk back from the last job to complete, through the last parent to complete
+		int last = 0;
+		for (int j = 1; j < n; j++)
+		{
+			if (completed[j] >= completed[last])
+			{
+				last = j;
+			}
+		}
+		LinkedList<Integer> path = new LinkedList<Integer>();
+		for (int j = last; j >= 0; )
+		{
+			path.addFirst(j);
+			int critical = -1;
+			for (int i = parentOffsets[j]; i < parentOffsets[j + 1]; i++)
+			{
+				if ((critical < 0) || (completed[parents[i]] > completed[critical]))
+				{
+					critical = parents[i];
+				}
+			}
+			j = critical;
+		}
+
+		// Jobs of the same chain share one descriptor, count it once
+		long[] sum = new long[PHASES.length];
+		long schedule = 0, untimed = 0, previous = begin, previousDispatch = -1;
+		int descriptors = 0;
+		for (int j : path)
+		{
+			if ((dispatched[j] == previousDispatch) && (completed[j] == previous))
+			{
+				continue;
+			}
+			descriptors++;
+			schedule += Math.max(0, dispatched[j] - previous);
+			if (phases[j] != null)
+			{
+				for (int p = 0; p < PHASES.length; p++)
+				{
+					sum[p] += phases[j][p];
+				}
+			}
+			else
+			{
+				untimed += completed[j] - dispatched[j];
+			}
+			previous = completed[j];
+			previousDispatch = dispatched[j];
+		}
+
+		long makespan = Math.max(1, end - begin);
+		out.println("Critical path: " + path.size() + " jobs in " + descriptors + " dispatches, from "
+			+ workflow.jobList.get(path.getFirst()).jobName + " to " + workflow.jobList.get(last).jobName + ", makespan " + makespan + " ms");
+		printShare(out, "schedule", schedule, makespan);
+		for (int p = 0; p < PHASES.length; p++)
+		{
+			printShare(out, PHASES[p], sum[p], makespan);
+		}
+		if (untimed > 0)
+		{
+			printShare(out, "untimed", untimed, makespan);
+		}
+		out.println();
+	}
+
+	void printShare(PrintStream out, String phase, long time, long makespan)
+	{
+		out.println(String.format("  %-10s %9d ms %6.1f%%", phase, time, 100.0 * time / makespan));
+	}
+}
@@ -0,0 +1,32 @@
+package net.qyjohn.dewev3.manager;
+
+/**
+ *
+ * The storage holding the files of the workflows, as seen by the scheduler:
+ * an S3 bucket, or a local folder. Keys are relative to the bucket (or
+ * folder), e.g. prefix/workdir/filename. Used by the JobMemoizer.
+ *
+ */
+
+public interface ObjectStore
+{
+	/**
+	 *
+	 * A hash of the content of an object, null if the object does not exist.
+	 *
+	 */
+
+	public String hash(String key) throws Exception;
+
+	/**
+	 *
+	 * The content of a small object, null if the object does not exist.
+	 *
+	 */
+
+	public String read(String key) throws Exception;
+
+	public void write(String key, String content) throws Exception;
+
+	public void copy(String from, String to) throws Exception;
+}
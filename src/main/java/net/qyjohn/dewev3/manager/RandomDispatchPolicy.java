@@ -0,0 +1,26 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+
+/**
+ *
+ * The original split: localPerc% of the short jobs, drawn at random, run locally.
+ *
+ */
+
+public class RandomDispatchPolicy extends DispatchPolicy
+{
+	public int localPerc;
+	Random random = new Random();
+
+	public RandomDispatchPolicy(Properties prop)
+	{
+		super(prop);
+		localPerc = Integer.parseInt(prop.getProperty("localPerc", "0"));
+	}
+
+	public boolean runLocally(WorkflowJob job, float criticalPath)
+	{
+		return random.nextInt(100) < localPerc;
+	}
+}
@@ -0,0 +1,72 @@
+package net.qyjohn.dewev3.manager;
+
+import com.amazonaws.services.s3.*;
+import com.amazonaws.services.s3.model.*;
+import org.apache.commons.io.IOUtils;
+
+/**
+ *
+ * An ObjectStore on an S3 bucket. The hash of an object is its ETag, the MD5
+ * of its content for objects not uploaded in parts. Objects are copied within
+ * S3, without going through the scheduler.
+ *
+ */
+
+public class S3ObjectStore implements ObjectStore
+{
+	AmazonS3Client client;
+	String bucket;
+
+	public S3ObjectStore(AmazonS3Client client, String bucket)
+	{
+		this.client = client;
+		this.bucket = bucket;
+	}
+
+	public String hash(String key) throws Exception
+	{
+		try
+		{
+			return client.getObjectMetadata(bucket, key).getETag();
+		} catch (AmazonS3Exception e)
+		{
+			if (e.getStatusCode() == 404)
+			{
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	public String read(String key) throws Exception
+	{
+		try
+		{
+			S3Object object = client.getObject(bucket, key);
+			try
+			{
+				return IOUtils.toString(object.getObjectContent(), "UTF-8");
+			} finally
+			{
+				object.close();
+			}
+		} catch (AmazonS3Exception e)
+		{
+			if (e.getStatusCode() == 404)
+			{
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	public void write(String key, String content) throws Exception
+	{
+		client.putObject(bucket, key, content);
+	}
+
+	public void copy(String from, String to) throws Exception
+	{
+		client.copyObject(bucket, from, bucket, to);
+	}
+}
@@ -0,0 +1,186 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
+
+import org.dom4j.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * A workflow parsed from its DAX document: the jobs, the DAG of their
+ * dependencies and the table of the files they use. The subclasses load
+ * dag.xml and the optional long.xml from the storage their transport works
+ * with (S3, Cloud Storage or a local folder).
+ *
+ */
+
+public abstract class Workflow implements DaxHandler
+{
+	public ConcurrentHashMap<String, WorkflowJob> jobs = new ConcurrentHashMap<String, WorkflowJob>();
+	public ArrayList<WorkflowJob> jobList = new ArrayList<WorkflowJob>();	// jobs by their index in the dag
+	public WorkflowDag dag = new WorkflowDag();
+	public WorkflowFiles files = new WorkflowFiles();
+	public String uuid, bucket, prefix;
+	public JobDescriptor descriptor;
+	public DaxParser parser = new DaxParser();
+	public boolean localExec = false;
+	List<String> longJobs = new ArrayList<String>();
+	HashMap<String, String> resources = new HashMap<String, String>();	// declared resource attributes by job name
+	final static Logger logger = Logger.getLogger(Workflow.class);
+
+
+	public Workflow(String uuid, String bucket, String prefix, boolean localExec)
+	{
+		this.uuid = uuid;
+		this.bucket = bucket;
+		this.prefix = prefix;
+		this.localExec = localExec;
+	}
+
+	public boolean isEmpty()
+	{
+		return dag.isComplete();
+	}
+
+
+	/**
+	 *
+	 * Load long-running job names from the content of long.xml. A <job> may also
+	 * declare the cores, memory (MB) and scratch disk (MB) its jobs need, which
+	 * are passed on in their descriptors to the local worker.
+	 *
+	 */
+
+	public void addLongJobs(String jobsXML) throws Exception
+	{
+		Element jobs = DocumentHelper.parseText(jobsXML).getRootElement();
+		for ( Iterator iter = jobs.elementIterator( "job" ); iter.hasNext(); )
+		{
+			Element job = (Element) iter.next();
+			String name = job.attribute("name").getValue();
+			longJobs.add(name);
+			StringBuilder sb = new StringBuilder();
+			for (String resource : new String[] {"cores", "memory", "disk"})
+			{
+				String value = job.attributeValue(resource);
+				if (value != null)
+				{
+					JobDescriptor.attribute(sb, resource, "" + Long.parseLong(value.trim()));
+				}
+			}
+			if (sb.length() > 0)
+			{
+				resources.put(name, sb.toString());
+			}
+		}
+		logger.info("Found long-running job definition long.xml with the following jobs:");
+		for (String s : longJobs)
+		{
+			logger.info("\t" + s);
+		}
+	}
+
+
+	/**
+	 *
+	 * Compute the upward rank of every job from the per-job cost estimates.
+	 *
+	 */
+
+	public void computeRanks(JobCostModel model)
+	{
+		float[] cost = new float[dag.size];
+		for (WorkflowJob job : jobList)
+		{
+			cost[job.index] = (float) model.getCost(job.jobName);
+		}
+		float[] rank = dag.upwardRanks(cost);
+		float longest = 0;
+		for (WorkflowJob job : jobList)
+		{
+			job.rank = rank[job.index];
+			longest = Math.max(longest, job.rank);
+		}
+		logger.info("Estimated critical path length: " + longest + " seconds.");
+	}
+
+
+	/**
+	 *
+	 * Fuse the linear chains of the DAG into single dispatch units. Long jobs,
+	 * which always run on the local worker, are left out of the chains.
+	 *
+	 */
+
+	public void fuseChains()
+	{
+		boolean[] excluded = new boolean[dag.size];
+		for (WorkflowJob job : jobList)
+		{
+			excluded[job.index] = job.isLongJob;
+		}
+		int chains = dag.fuseChains(excluded);
+		logger.info("Fused " + chains + " linear chains of jobs.");
+	}
+
+
+	/**
+	 *
+	 * Return the jobs of the chain starting with a job, in execution order.
+	 *
+	 */
+
+	public List<WorkflowJob> getChain(WorkflowJob head)
+	{
+		List<WorkflowJob> chain = new ArrayList<WorkflowJob>();
+		for (int j = head.index; j >= 0; j = dag.chainNext(j))
+		{
+			chain.add(jobList.get(j));
+		}
+		return chain;
+	}
+
+
+	/**
+	 *
+	 * Parse the dependencies of a job
+	 *
+	 */
+
+	public void addDependency(String parent_id, String child_id)
+	{
+		WorkflowJob child = jobs.get(child_id);
+		WorkflowJob parent = jobs.get(parent_id);
+		if ((child == null) || (parent == null))
+		{
+			logger.warn("Ignoring dependency on undefined job " + parent_id + " -> " + child_id);
+			return;
+		}
+		dag.addEdge(parent.index, child.index);
+	}
+
+
+	/**
+	 *
+	 * Prepare a job from its job name (command), command line arguments and files
+	 *
+	 */
+
+	public void addJob(String id, String name, String command, List<DaxParser.FileUse> uses)
+	{
+		// Create a WorkflowJob object. The XML descriptor is only built at dispatch time.
+		WorkflowJob job = new WorkflowJob(uuid, bucket, prefix, id, name);
+
+		job.setCommand(command);
+		files.addUses(job, uses);
+		job.setLongJob(localExec);
+		if (longJobs.contains(name))
+		{
+			job.setLongJob(true);
+		}
+		job.index = dag.addJob();
+		jobList.add(job);
+		jobs.put(id, job);
+	}
+}
@@ -0,0 +1,294 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Write-ahead log of the completed jobs of a workflow, so that a scheduler
+ * restarted with the same workflow UUID skips the jobs already done.
+ *
+ * Every completion (a job, or all the jobs of a fused chain) is appended to
+ * <uuid>.log as one line of job ids, and flushed before the children of the
+ * job are released. Every compactEvery completions, the completed jobs are
+ * written to <uuid>.snapshot as ranges of job indexes, and the log starts
+ * over. On resume, the snapshot and then the log are replayed over the DAG,
+ * parents first. A torn last line of the log is ignored, and so is a chain
+ * only partly logged, which simply runs again. Both files are deleted once
+ * the workflow has completed.
+ *
+ * Job indexes and ids only mean the same jobs in the same workflow, so the
+ * snapshot header carries a fingerprint of the parsed DAG (jobs, commands,
+ * files and dependencies). When dag.xml has changed since the checkpoint was
+ * written, the checkpoint is discarded and the workflow starts from scratch.
+ *
+ */
+
+public class WorkflowCheckpoint
+{
+	Workflow workflow;
+	File logFile, snapshotFile;
+	Writer log;
+	BitSet done;
+	int compactEvery, appended = 0;
+	boolean sync;
+	FileOutputStream logStream;
+	String fingerprint;
+	final static Logger logger = Logger.getLogger(WorkflowCheckpoint.class);
+
+	public WorkflowCheckpoint(File dir, Workflow workflow, int compactEvery, boolean sync)
+	{
+		this.workflow = workflow;
+		this.compactEvery = compactEvery;
+		this.sync = sync;
+		dir.mkdirs();
+		logFile      = new File(dir, workflow.uuid + ".log");
+		snapshotFile = new File(dir, workflow.uuid + ".snapshot");
+		done = new BitSet(workflow.dag.size);
+	}
+
+
+	/**
+	 *
+	 * SHA-256 of the jobs, in index order, and of their dependencies.
+	 *
+	 */
+
+	String fingerprint() throws IOException
+	{
+		if (fingerprint == null)
+		{
+			try
+			{
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				WorkflowFiles files = workflow.files;
+				WorkflowDag dag = workflow.dag;
+				StringBuilder sb = new StringBuilder();
+				for (WorkflowJob job : workflow.jobList)
+				{
+					sb.setLength(0);
+					sb.append(job.jobId).append('\n').append(job.jobName).append('\n').append(job.jobCommand).append('\n');
+					for (int[] list : new int[][] {job.binFiles, job.inFiles, job.outFiles})
+					{
+						for (int f : list)
+						{
+							sb.append(files.names[f]).append(' ');
+						}
+						sb.append('\n');
+					}
+					for (int i = dag.childOffsets[job.index]; i < dag.childOffsets[job.index + 1]; i++)
+					{
+						sb.append(dag.children[i]).append(' ');
+					}
+					sb.append('\n');
+					digest.update(sb.toString().getBytes("UTF-8"));
+				}
+				fingerprint = JobMemoizer.hex(digest.digest());
+			} catch (java.security.NoSuchAlgorithmException e)
+			{
+				throw new IOException(e);
+			}
+		}
+		return fingerprint;
+	}
+
+
+	/**
+	 *
+	 * Mark the jobs completed in an earlier run as complete in the DAG, then
+	 * open the log for appending. Returns the number of jobs recovered.
+	 *
+	 */
+
+	public int recover() throws IOException
+	{
+		BitSet logged = new BitSet(workflow.dag.size);
+		if (snapshotFile.exists() && readSnapshot(logged))
+		{
+			if (logFile.exists())
+			{
+				readLog(logged);
+			}
+		}
+		else if (snapshotFile.exists() || logFile.exists())
+		{
+			logger.warn("Checkpoint of " + workflow.uuid + " does not match the workflow, starting from scratch.");
+			logged.clear();
+		}
+
+		// Replay parents first. Partly logged chains and jobs whose parents are not all complete stay pending.
+		done.or(workflow.dag.completeAll(logged));
+
+		// Start from a compact snapshot of what was recovered
+		writeSnapshot();
+		openLog(false);
+		return done.cardinality();
+	}
+
+	/**
+	 *
+	 * Read the jobs of the snapshot. Returns false if it was written for another DAG.
+	 *
+	 */
+
+	boolean readSnapshot(BitSet logged) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(snapshotFile));
+		try
+		{
+			String line = in.readLine();
+			String[] header = (line == null) ? new String[0] : line.split(" ");
+			if ((header.length != 3) || (Integer.parseInt(header[0]) != workflow.dag.size)
+				|| (Integer.parseInt(header[1]) != workflow.dag.edgeCount()) || !header[2].equals(fingerprint()))
+			{
+				return false;
+			}
+			while ((line = in.readLine()) != null)
+			{
+				if (line.isEmpty())
+				{
+					continue;
+				}
+				int dash = line.indexOf('-');
+				int from = Integer.parseInt(line.substring(0, dash));
+				int to   = Integer.parseInt(line.substring(dash + 1));
+				logged.set(from, to + 1);
+			}
+			return true;
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	void readLog(BitSet logged) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new FileReader(logFile));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				// Each record ends with a dot, a line without it was torn by the crash
+				if (!line.endsWith(" ."))
+				{
+					continue;
+				}
+				String[] ids = line.split(" ");
+				for (int i = 0; i < ids.length - 1; i++)
+				{
+					WorkflowJob job = workflow.jobs.get(ids[i]);
+					if (job != null)
+					{
+						logged.set(job.index);
+					}
+				}
+			}
+		} finally
+		{
+			in.close();
+		}
+	}
+
+
+	/**
+	 *
+	 * Log the completion of a job, or of the jobs of a chain. Returns once the
+	 * record has been written (and synced to disk with checkpointSync).
+	 *
+	 */
+
+	public synchronized void completed(List<WorkflowJob> jobs)
+	{
+		try
+		{
+			StringBuilder sb = new StringBuilder();
+			for (WorkflowJob job : jobs)
+			{
+				sb.append(job.jobId).append(' ');
+				done.set(job.index);
+			}
+			sb.append(".\n");
+			log.write(sb.toString());
+			log.flush();
+			if (sync)
+			{
+				logStream.getFD().sync();
+			}
+			if (++appended >= compactEvery)
+			{
+				compact();
+			}
+		} catch (IOException e)
+		{
+			logger.warn("Unable to write checkpoint " + logFile + ": " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 *
+	 * Replace the log with a snapshot of the completed jobs.
+	 *
+	 */
+
+	void compact() throws IOException
+	{
+		log.close();
+		writeSnapshot();
+		openLog(false);
+		appended = 0;
+	}
+
+	void writeSnapshot() throws IOException
+	{
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+		out.write(workflow.dag.size + " " + workflow.dag.edgeCount() + " " + fingerprint() + "\n");
+		for (int from = done.nextSetBit(0); from >= 0; )
+		{
+			int to = done.nextClearBit(from);
+			out.write(from + "-" + (to - 1) + "\n");
+			from = done.nextSetBit(to);
+		}
+		out.flush();
+		stream.getFD().sync();
+		out.close();
+		if (!tmp.renameTo(snapshotFile))
+		{
+			snapshotFile.delete();
+			if (!tmp.renameTo(snapshotFile))
+			{
+				throw new IOException("Unable to rename " + tmp + " to " + snapshotFile);
+			}
+		}
+	}
+
+	void openLog(boolean append) throws IOException
+	{
+		logStream = new FileOutputStream(logFile, append);
+		log = new BufferedWriter(new OutputStreamWriter(logStream, "UTF-8"));
+	}
+
+
+	/**
+	 *
+	 * The workflow has completed, the checkpoint is no longer needed.
+	 *
+	 */
+
+	public synchronized void delete()
+	{
+		try
+		{
+			log.close();
+		} catch (IOException e)
+		{
+		}
+		logFile.delete();
+		snapshotFile.delete();
+	}
+}
@@ -0,0 +1,346 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *
+ * Int-indexed job dependency graph.
+ *
+ * Jobs are numbered 0..n-1 in the order they are added. After compile() the
+ * children of job i are children[childOffsets[i]] .. children[childOffsets[i+1]-1]
+ * (compressed sparse rows), and pending[i] holds the number of parents of job i
+ * that have not completed yet. A job is ready when pending[i] reaches 0 and is
+ * marked complete by moving pending[i] from 0 to -1, so neither releasing a
+ * child nor completing a job allocates.
+ *
+ */
+
+public class WorkflowDag
+{
+	public int size = 0;
+	public int[] childOffsets, children;
+	public AtomicIntegerArray pending;
+	public AtomicInteger remaining;
+	public int[] chainNext, chainHead;	// fused chains, built by fuseChains()
+
+	// Edge list, only used while the DAG is being built
+	int[] edgeParent = new int[1024], edgeChild = new int[1024];
+	int nEdges = 0;
+
+
+	/**
+	 *
+	 * Add a job to the DAG, returning its index
+	 *
+	 */
+
+	public int addJob()
+	{
+		return size++;
+	}
+
+
+	/**
+	 *
+	 * Add a dependency between two jobs
+	 *
+	 */
+
+	public void addEdge(int parent, int child)
+	{
+		if (nEdges == edgeParent.length)
+		{
+			edgeParent = Arrays.copyOf(edgeParent, 2 * nEdges);
+			edgeChild  = Arrays.copyOf(edgeChild,  2 * nEdges);
+		}
+		edgeParent[nEdges] = parent;
+		edgeChild[nEdges]  = child;
+		nEdges++;
+	}
+
+
+	/**
+	 *
+	 * Build the CSR child adjacency and the in-degree counters from the edge list.
+	 * Duplicated edges are dropped.
+	 *
+	 */
+
+	public void compile()
+	{
+		// Bucket the edges by parent
+		int[] offsets = new int[size + 1];
+		for (int e = 0; e < nEdges; e++)
+		{
+			offsets[edgeParent[e] + 1]++;
+		}
+		for (int i = 0; i < size; i++)
+		{
+			offsets[i + 1] += offsets[i];
+		}
+		int[] next = Arrays.copyOf(offsets, size);
+		int[] adjacency = new int[nEdges];
+		for (int e = 0; e < nEdges; e++)
+		{
+			adjacency[next[edgeParent[e]]++] = edgeChild[e];
+		}
+
+		// Sort each row and remove duplicates in place
+		int[] rows = new int[size + 1];
+		int out = 0;
+		for (int i = 0; i < size; i++)
+		{
+			Arrays.sort(adjacency, offsets[i], offsets[i + 1]);
+			rows[i] = out;
+			for (int e = offsets[i]; e < offsets[i + 1]; e++)
+			{
+				if ((out == rows[i]) || (adjacency[out - 1] != adjacency[e]))
+				{
+					adjacency[out++] = adjacency[e];
+				}
+			}
+		}
+		rows[size] = out;
+		edgeParent = null;
+		edgeChild  = null;
+		setChildren(rows, (out == nEdges) ? adjacency : Arrays.copyOf(adjacency, out));
+	}
+
+
+	/**
+	 *
+	 * Install an already compiled CSR adjacency, e.g. one loaded from a CompiledWorkflow,
+	 * and reset the in-degree counters.
+	 *
+	 */
+
+	public void setChildren(int[] childOffsets, int[] children)
+	{
+		this.size = childOffsets.length - 1;
+		this.childOffsets = childOffsets;
+		this.children = children;
+
+		int[] inDegree = new int[size];
+		for (int e = 0; e < childOffsets[size]; e++)
+		{
+			inDegree[children[e]]++;
+		}
+		pending   = new AtomicIntegerArray(inDegree);
+		remaining = new AtomicInteger(size);
+	}
+
+
+	/**
+	 *
+	 * Jobs in topological order (parents before children). Jobs on a cycle are
+	 * left out, so the result may be shorter than size.
+	 *
+	 */
+
+	public int[] topologicalOrder()
+	{
+		int[] inDegree = new int[size];
+		for (int e = 0; e < childOffsets[size]; e++)
+		{
+			inDegree[children[e]]++;
+		}
+		int[] order = new int[size];
+		int head = 0, tail = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (inDegree[i] == 0)
+			{
+				order[tail++] = i;
+			}
+		}
+		while (head < tail)
+		{
+			int job = order[head++];
+			for (int e = childOffsets[job]; e < childOffsets[job + 1]; e++)
+			{
+				if (--inDegree[children[e]] == 0)
+				{
+					order[tail++] = children[e];
+				}
+			}
+		}
+		return (tail == size) ? order : Arrays.copyOf(order, tail);
+	}
+
+
+	/**
+	 *
+	 * Detect linear chains: a job with a single child, that child having the job
+	 * as its single parent. chainNext[i] is the next job in the chain of job i
+	 * (-1 at the end of a chain) and chainHead[i] the first job of the chain.
+	 * Excluded jobs are never fused. Returns the number of chains.
+	 *
+	 */
+
+	public int fuseChains(boolean[] excluded)
+	{
+		int[] inDegree = new int[size];
+		for (int e = 0; e < childOffsets[size]; e++)
+		{
+			inDegree[children[e]]++;
+		}
+		int[] next = new int[size], head = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			next[i] = -1;
+			head[i] = i;
+			if ((childOffsets[i + 1] - childOffsets[i] == 1) && !excluded[i])
+			{
+				int child = children[childOffsets[i]];
+				if ((inDegree[child] == 1) && !excluded[child])
+				{
+					next[i] = child;
+				}
+			}
+		}
+
+		int chains = 0;
+		for (int job : topologicalOrder())
+		{
+			if (next[job] >= 0)
+			{
+				head[next[job]] = head[job];
+				if (head[job] == job)
+				{
+					chains++;
+				}
+			}
+		}
+		chainNext = next;
+		chainHead = head;
+		return chains;
+	}
+
+	public int chainNext(int job)
+	{
+		return (chainNext == null) ? -1 : chainNext[job];
+	}
+
+	public int chainHead(int job)
+	{
+		return (chainHead == null) ? job : chainHead[job];
+	}
+
+
+	/**
+	 *
+	 * Upward rank of every job: its own cost plus the largest upward rank of its
+	 * children, that is the length of the longest path from the job to an exit job.
+	 *
+	 */
+
+	public float[] upwardRanks(float[] cost)
+	{
+		float[] rank = Arrays.copyOf(cost, size);
+		int[] order = topologicalOrder();
+		for (int k = order.length - 1; k >= 0; k--)
+		{
+			int job = order[k];
+			float longest = 0;
+			for (int e = childOffsets[job]; e < childOffsets[job + 1]; e++)
+			{
+				longest = Math.max(longest, rank[children[e]]);
+			}
+			rank[job] = cost[job] + longest;
+		}
+		return rank;
+	}
+
+
+	/**
+	 *
+	 * Mark a set of jobs as complete without running them, parents first,
+	 * releasing their children. A job with a parent not complete stays pending,
+	 * and so do the jobs of a fused chain not in the set as a whole. Returns the
+	 * jobs completed.
+	 *
+	 */
+
+	public BitSet completeAll(BitSet jobs)
+	{
+		BitSet set = (BitSet) jobs.clone();
+		for (int j = set.nextSetBit(0); j >= 0; j = set.nextSetBit(j + 1))
+		{
+			int head = chainHead(j);
+			for (int k = head; k >= 0; k = chainNext(k))
+			{
+				if (!set.get(k))
+				{
+					for (k = head; k >= 0; k = chainNext(k))
+					{
+						set.clear(k);
+					}
+					break;
+				}
+			}
+		}
+
+		BitSet completed = new BitSet(size);
+		for (int j : topologicalOrder())
+		{
+			if (set.get(j) && complete(j))
+			{
+				completed.set(j);
+				for (int e = childOffsets[j]; e < childOffsets[j + 1]; e++)
+				{
+					release(children[e]);
+				}
+			}
+		}
+		return completed;
+	}
+
+
+	public int edgeCount()
+	{
+		return childOffsets[size];
+	}
+
+	public boolean isReady(int job)
+	{
+		return pending.get(job) == 0;
+	}
+
+	public boolean isComplete()
+	{
+		return remaining.get() == 0;
+	}
+
+
+	/**
+	 *
+	 * One parent of the child has completed. Returns true if this was the last one,
+	 * that is the child has just become ready.
+	 *
+	 */
+
+	public boolean release(int child)
+	{
+		return pending.decrementAndGet(child) == 0;
+	}
+
+
+	/**
+	 *
+	 * Mark a ready job as complete. Returns false if the job has already been
+	 * completed, or is not ready yet.
+	 *
+	 */
+
+	public boolean complete(int job)
+	{
+		if (pending.compareAndSet(job, 0, -1))
+		{
+			remaining.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,255 @@
+package net.qyjohn.dewev3.manager;
+
+import java.util.*;
+
+/**
+ *
+ * Workflow-wide file symbol table.
+ *
+ * Every file name used by the workflow, including the job binaries, is
+ * interned once and referred to by its int ID. For each file the table keeps
+ * the link type, the transfer / register / executable flags from the DAX
+ * <uses> elements and the size when the DAX provides one. After index() it
+ * also knows the job producing each file and, in CSR form, the jobs consuming
+ * it, so locality, prefetch and clean-up decisions need no string handling.
+ *
+ */
+
+public class WorkflowFiles
+{
+	public final static byte INPUT = 1, OUTPUT = 2, EXECUTABLE = 4, TRANSFER = 8, REGISTER = 16;
+
+	HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	public int size = 0;
+	public String[] names = new String[1024];
+	public byte[] flags   = new byte[1024];
+	public long[] sizes   = new long[1024];	// -1 when unknown
+
+	// Producer / consumer index, built by index()
+	public int[] producers;	// job index, -1 for workflow inputs
+	public int[] consumerOffsets, consumers;
+
+
+	/**
+	 *
+	 * Intern a file, returning its ID. Flags are merged with those of earlier uses.
+	 *
+	 */
+
+	public int addFile(String name, byte flag, long fileSize)
+	{
+		Integer id = ids.get(name);
+		if (id == null)
+		{
+			if (size == names.length)
+			{
+				names = Arrays.copyOf(names, 2 * size);
+				flags = Arrays.copyOf(flags, 2 * size);
+				sizes = Arrays.copyOf(sizes, 2 * size);
+			}
+			id = size++;
+			ids.put(name, id);
+			names[id] = name;
+			sizes[id] = -1;
+		}
+		flags[id] |= flag;
+		if (fileSize > sizes[id])
+		{
+			sizes[id] = fileSize;
+		}
+		return id;
+	}
+
+	public int getId(String name)
+	{
+		Integer id = ids.get(name);
+		return (id == null) ? -1 : id;
+	}
+
+
+	/**
+	 *
+	 * Convert the <uses> of a job into the binary, input and output file IDs of the job.
+	 * The job name itself is the first binary.
+	 *
+	 */
+
+	public void addUses(WorkflowJob job, List<DaxParser.FileUse> uses)
+	{
+		int nBin = 1, nIn = 0, nOut = 0;
+		for (DaxParser.FileUse use : uses)
+		{
+			if (!use.input)
+			{
+				nOut++;
+			}
+			else if (use.executable)
+			{
+				nBin++;
+			}
+			else
+			{
+				nIn++;
+			}
+		}
+
+		int[] bin = new int[nBin], in = new int[nIn], out = new int[nOut];
+		bin[0] = addFile(job.jobName, (byte) (INPUT | EXECUTABLE), -1);
+		nBin = 1; nIn = 0; nOut = 0;
+		for (DaxParser.FileUse use : uses)
+		{
+			byte flag = use.input ? INPUT : OUTPUT;
+			if (use.executable)
+			{
+				flag |= EXECUTABLE;
+			}
+			if (use.transfer)
+			{
+				flag |= TRANSFER;
+			}
+			if (use.register)
+			{
+				flag |= REGISTER;
+			}
+			int id = addFile(use.name, flag, use.size);
+			if (!use.input)
+			{
+				out[nOut++] = id;
+			}
+			else if (use.executable)
+			{
+				bin[nBin++] = id;
+			}
+			else
+			{
+				in[nIn++] = id;
+			}
+		}
+		job.setFiles(bin, in, out);
+	}
+
+
+	/**
+	 *
+	 * Build the producer and consumer index from the file IDs of the jobs.
+	 *
+	 */
+
+	public void index(List<WorkflowJob> jobs)
+	{
+		producers = new int[size];
+		Arrays.fill(producers, -1);
+		consumerOffsets = new int[size + 1];
+		for (WorkflowJob job : jobs)
+		{
+			for (int f : job.outFiles)
+			{
+				producers[f] = job.index;
+			}
+			for (int f : job.binFiles)
+			{
+				consumerOffsets[f + 1]++;
+			}
+			for (int f : job.inFiles)
+			{
+				consumerOffsets[f + 1]++;
+			}
+		}
+		for (int f = 0; f < size; f++)
+		{
+			consumerOffsets[f + 1] += consumerOffsets[f];
+		}
+		consumers = new int[consumerOffsets[size]];
+		int[] next = Arrays.copyOf(consumerOffsets, size);
+		for (WorkflowJob job : jobs)
+		{
+			for (int f : job.binFiles)
+			{
+				consumers[next[f]++] = job.index;
+			}
+			for (int f : job.inFiles)
+			{
+				consumers[next[f]++] = job.index;
+			}
+		}
+	}
+
+
+	public int consumerCount(int file)
+	{
+		return consumerOffsets[file + 1] - consumerOffsets[file];
+	}
+
+	/**
+	 *
+	 * A workflow input is not produced by any job.
+	 *
+	 */
+
+	public boolean isWorkflowInput(int file)
+	{
+		return producers[file] < 0;
+	}
+
+	/**
+	 *
+	 * A final output is produced by a job but not consumed by any other job.
+	 *
+	 */
+
+	public boolean isFinalOutput(int file)
+	{
+		return (producers[file] >= 0) && (consumerCount(file) == 0);
+	}
+
+
+	/**
+	 *
+	 * The file of a list to co-locate its consumers on: the least shared file
+	 * consumed by more than one job but by fewer than limit jobs, the largest
+	 * one on a tie. Files read by every job of a level (region headers, image
+	 * tables) are left out, they would send the whole level to one worker.
+	 * Returns -1 when no file qualifies.
+	 *
+	 */
+
+	public int affinityFile(int[] list, int limit)
+	{
+		int best = -1;
+		for (int f : list)
+		{
+			int consumers = consumerCount(f);
+			if ((consumers < 2) || (consumers >= limit))
+			{
+				continue;
+			}
+			if ((best < 0) || (consumers < consumerCount(best))
+				|| ((consumers == consumerCount(best)) && (sizes[f] > sizes[best])))
+			{
+				best = f;
+			}
+		}
+		return best;
+	}
+
+
+	/**
+	 *
+	 * Space-separated list of file names
+	 *
+	 */
+
+	public String join(int[] files)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int f : files)
+		{
+			if (sb.length() > 0)
+			{
+				sb.append(' ');
+			}
+			sb.append(names[f]);
+		}
+		return sb.toString();
+	}
+}
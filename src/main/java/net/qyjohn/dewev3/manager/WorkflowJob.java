@@ -9,11 +9,13 @@ import org.apache.log4j.Logger;
 public class WorkflowJob
 {
 	public String workflow, bucket, prefix;
-	public String jobId, jobName, jobXML, jobCommand;	// job id and job name
-	HashSet<String> parentJobs 		= new HashSet<String>();
-	HashSet<String> childrenJobs 	= new HashSet<String>();
-	public boolean ready;
+	public String jobId, jobName, jobCommand;	// job id and job name
+	public int[] binFiles, inFiles, outFiles;	// file IDs in the WorkflowFiles table
+	public int index;	// position of the job in the WorkflowDag
+	public float rank;	// upward rank, the estimated critical path length from this job
 	public boolean isLongJob = false;
+	public volatile boolean local;	// dispatched to the local worker
+	public volatile boolean speculated;	// a speculative copy has been dispatched
 	final static Logger logger = Logger.getLogger(WorkflowJob.class);
 
 	/**
@@ -22,18 +24,13 @@ public class WorkflowJob
 	 *
 	 */
 
-	public WorkflowJob(String workflow, String bucket, String prefix, String id, String name, String xml)
+	public WorkflowJob(String workflow, String bucket, String prefix, String id, String name)
 	{
 		this.workflow = workflow;
 		this.bucket   = bucket;
 		this.prefix   = prefix;
 		this.jobId    = id;
 		this.jobName  = name;
-		this.jobXML   = xml;
-		
-		// By default this job is ready to go, unless we find out that it has parents!
-		ready = true;		
-		logger.debug(jobXML);
 	}
 
 	
@@ -49,44 +46,11 @@ public class WorkflowJob
 		jobCommand = cmd;
 	}
 	
-	 
-	/**
-	 *
-	 * Add a child to the job
-	 *
-	 */
 
-	public void addChild(String child_id)
+	public void setFiles(int[] binFiles, int[] inFiles, int[] outFiles)
 	{
-		childrenJobs.add(child_id);
+		this.binFiles = binFiles;
+		this.inFiles  = inFiles;
+		this.outFiles = outFiles;
 	}
-
-	/**
-	 *
-	 * Add a parent to the job
-	 *
-	 */
-
-	public void addParent(String parent_id)
-	{
-		parentJobs.add(parent_id);
-		ready = false;
-	}
-	
-	/**
-	 *
-	 * Remove a parent from the job
-	 *
-	 */
-
-	public void removeParent(String parent_id)
-	{
-		parentJobs.remove(parent_id);
-		if (parentJobs.isEmpty())
-		{
-			ready = true;
-		}
-	}	
 }
-
-
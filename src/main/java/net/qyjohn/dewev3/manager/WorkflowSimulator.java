@@ -0,0 +1,380 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *
+ * Offline discrete-event replay of a workflow against an execution trace.
+ *
+ * Usage: WorkflowSimulator <dag.xml or workflow folder> <trace file> [key=value]...
+ *
+ * The DAG (and long.xml, if the folder has one) is replayed with the job
+ * times of the trace under every combination of the settings given, and the
+ * predicted makespan of each combination is printed. Settings take comma-
+ * separated lists of values: dispatchPolicy, localPerc, localSlots (jobs the
+ * local worker runs at the same time), lambdaConcurrency (FaaS jobs running
+ * at the same time), or any other DispatchPolicy property.
+ *
+ * As in the scheduler, the jobs released by an ACK are dispatched at once,
+ * highest upward rank first, through the DispatchPolicy. A job reaches its
+ * tier after the dispatch overhead of that tier, waits for a free slot (by
+ * rank on the local worker, in order on the FaaS side), holds the slot for
+ * its download, execution and upload time, and is ACKed after the ACK latency
+ * of the tier. The time of a job on a tier comes from its own trace entry if
+ * it ran there, else from the average of its transformation on that tier,
+ * else from its execution time plus its I/O at the storage throughput of that
+ * tier. The queue times of the trace include waiting for a slot, which the
+ * simulation models on its own, so the dispatch overhead of a tier is the
+ * 25th percentile of its queue times rather than the mean.
+ *
+ */
+
+public class WorkflowSimulator
+{
+	public final static int LOCAL = 0, FAAS = 1;
+
+	Workflow workflow;
+	WorkflowTrace trace;
+	int n;
+	int[] indegree;
+	long[][] busy = new long[2][];	// per tier and job, the time holding a slot (ms)
+	long[] overhead = new long[2], ackLatency = new long[2];
+
+	/**
+	 *
+	 * A job arriving at its tier, finishing, or being ACKed
+	 *
+	 */
+
+	static class Event implements Comparable<Event>
+	{
+		final static int ARRIVE = 0, FINISH = 1, ACK = 2;
+		long time, seq;
+		int type, job;
+
+		Event(long time, long seq, int type, int job)
+		{
+			this.time = time;
+			this.seq  = seq;
+			this.type = type;
+			this.job  = job;
+		}
+
+		public int compareTo(Event e)
+		{
+			return (time != e.time) ? Long.compare(time, e.time) : Long.compare(seq, e.seq);
+		}
+	}
+
+
+	public WorkflowSimulator(Workflow workflow, WorkflowTrace trace)
+	{
+		this.workflow = workflow;
+		this.trace = trace;
+		n = workflow.dag.size;
+		WorkflowDag dag = workflow.dag;
+		indegree = new int[n];
+		for (int i = 0; i < dag.childOffsets[n]; i++)
+		{
+			indegree[dag.children[i]]++;
+		}
+		estimate();
+
+		// Upward ranks from the FaaS times, as the scheduler does from the cost model
+		float[] cost = new float[n];
+		for (int j = 0; j < n; j++)
+		{
+			cost[j] = busy[FAAS][j] / 1000f;
+		}
+		float[] rank = dag.upwardRanks(cost);
+		for (WorkflowJob job : workflow.jobList)
+		{
+			job.rank = rank[job.index];
+		}
+	}
+
+
+	/**
+	 *
+	 * The time of every job on each tier, and the overheads of each tier.
+	 *
+	 */
+
+	void estimate()
+	{
+		// Per tier: queue and ACK samples, storage throughput, per-transformation averages
+		List<List<Long>> queues = new ArrayList<List<Long>>(), acks = new ArrayList<List<Long>>();
+		double[] ioBytes = new double[2], ioTime = new double[2];
+		List<Map<String, long[]>> byName = new ArrayList<Map<String, long[]>>();	// sum of busy, exec, io and count
+		Map<String, long[]> anyTier = new HashMap<String, long[]>();
+		for (int tier = 0; tier < 2; tier++)
+		{
+			queues.add(new ArrayList<Long>());
+			acks.add(new ArrayList<Long>());
+			byName.add(new HashMap<String, long[]>());
+		}
+		for (WorkflowTrace.Entry e : trace.entries.values())
+		{
+			if (e.phases == null)
+			{
+				continue;
+			}
+			int tier = e.local ? LOCAL : FAAS;
+			queues.get(tier).add(e.phases[0]);
+			acks.get(tier).add(e.phases[5]);
+			if ((e.inBytes >= 0) && (e.outBytes >= 0) && (e.io() > 0))
+			{
+				ioBytes[tier] += e.inBytes + e.outBytes;
+				ioTime[tier]  += e.io();
+			}
+			add(byName.get(tier), e);
+			add(anyTier, e);
+		}
+		for (int tier = 0; tier < 2; tier++)
+		{
+			List<Long> q = queues.get(tier).isEmpty() ? queues.get(1 - tier) : queues.get(tier);
+			List<Long> a = acks.get(tier).isEmpty() ? acks.get(1 - tier) : acks.get(tier);
+			overhead[tier]   = percentile(q, 0.25);
+			ackLatency[tier] = percentile(a, 0.5);
+		}
+
+		JobCostModel defaults = new JobCostModel(null);
+		for (int tier = 0; tier < 2; tier++)
+		{
+			busy[tier] = new long[n];
+			double throughput = (ioTime[tier] > 0) ? ioBytes[tier] / ioTime[tier] : 0;	// bytes per ms
+			for (WorkflowJob job : workflow.jobList)
+			{
+				WorkflowTrace.Entry e = trace.entries.get(job.jobId);
+				boolean traced = (e != null) && (e.phases != null);
+				long[] sameTier = byName.get(tier).get(job.jobName);
+				long[] any = anyTier.get(job.jobName);
+				long time;
+				if (traced && (e.local == (tier == LOCAL)))
+				{
+					time = e.busy();
+				}
+				else if (sameTier != null)
+				{
+					time = sameTier[0] / sameTier[3];
+				}
+				else if (traced || (any != null))
+				{
+					long exec = traced ? e.phases[3] : any[1] / any[3];
+					long io   = traced ? e.io() : any[2] / any[3];
+					if (traced && (throughput > 0) && (e.inBytes >= 0) && (e.outBytes >= 0))
+					{
+						io = (long) ((e.inBytes + e.outBytes) / throughput);
+					}
+					time = exec + io;
+				}
+				else
+				{
+					time = (long) (defaults.getCost(job.jobName) * 1000);
+				}
+				busy[tier][job.index] = time;
+			}
+		}
+	}
+
+	static void add(Map<String, long[]> map, WorkflowTrace.Entry e)
+	{
+		long[] sum = map.get(e.name);
+		if (sum == null)
+		{
+			sum = new long[4];
+			map.put(e.name, sum);
+		}
+		sum[0] += e.busy();
+		sum[1] += e.phases[3];
+		sum[2] += e.io();
+		sum[3]++;
+	}
+
+	static long percentile(List<Long> values, double p)
+	{
+		if (values.isEmpty())
+		{
+			return 0;
+		}
+		List<Long> sorted = new ArrayList<Long>(values);
+		Collections.sort(sorted);
+		return sorted.get((int) ((sorted.size() - 1) * p));
+	}
+
+
+	/**
+	 *
+	 * Replay the workflow with the given settings. Returns the makespan (ms),
+	 * and the number of jobs run on each tier in jobs[].
+	 *
+	 */
+
+	public long simulate(Properties prop, int[] jobs) throws Exception
+	{
+		DispatchPolicy policy = DispatchPolicy.create(prop);
+		if (policy instanceof RandomDispatchPolicy)
+		{
+			((RandomDispatchPolicy) policy).random = new Random(0);	// same draws for every run
+		}
+		int[] capacity = {policy.localSlots, Integer.parseInt(prop.getProperty("lambdaConcurrency", "1000"))};
+		int[] running = new int[2];
+		PriorityQueue<WorkflowJob> localWaiting = new PriorityQueue<WorkflowJob>(16, new Comparator<WorkflowJob>()
+		{
+			public int compare(WorkflowJob a, WorkflowJob b)
+			{
+				return Float.compare(b.rank, a.rank);
+			}
+		});
+		ArrayDeque<WorkflowJob> faasWaiting = new ArrayDeque<WorkflowJob>();
+
+		PriorityQueue<Event> events = new PriorityQueue<Event>();
+		int[] pending = Arrays.copyOf(indegree, n);
+		int[] tier = new int[n];
+		long[] dispatched = new long[n];
+		long seq = 0, now = 0;
+		int completed = 0;
+		WorkflowDag dag = workflow.dag;
+
+		List<WorkflowJob> ready = new ArrayList<WorkflowJob>();
+		for (WorkflowJob job : workflow.jobList)
+		{
+			if (pending[job.index] == 0)
+			{
+				ready.add(job);
+			}
+		}
+		while (true)
+		{
+			// Dispatch the ready jobs, highest upward rank first
+			if (!ready.isEmpty())
+			{
+				Collections.sort(ready, localWaiting.comparator());
+				float criticalPath = ready.get(0).rank;
+				for (WorkflowJob job : ready)
+				{
+					int t = policy.dispatch(job, criticalPath) ? LOCAL : FAAS;
+					tier[job.index] = t;
+					dispatched[job.index] = now;
+					jobs[t]++;
+					events.add(new Event(now + overhead[t], seq++, Event.ARRIVE, job.index));
+				}
+				ready.clear();
+			}
+
+			Event e = events.poll();
+			if (e == null)
+			{
+				break;
+			}
+			now = e.time;
+			WorkflowJob job = workflow.jobList.get(e.job);
+			int t = tier[e.job];
+			if (e.type == Event.ARRIVE)
+			{
+				if (running[t] < capacity[t])
+				{
+					running[t]++;
+					events.add(new Event(now + busy[t][e.job], seq++, Event.FINISH, e.job));
+				}
+				else if (t == LOCAL)
+				{
+					localWaiting.add(job);
+				}
+				else
+				{
+					faasWaiting.add(job);
+				}
+			}
+			else if (e.type == Event.FINISH)
+			{
+				WorkflowJob next = (t == LOCAL) ? localWaiting.poll() : faasWaiting.poll();
+				if (next != null)
+				{
+					events.add(new Event(now + busy[t][next.index], seq++, Event.FINISH, next.index));
+				}
+				else
+				{
+					running[t]--;
+				}
+				events.add(new Event(now + ackLatency[t], seq++, Event.ACK, e.job));
+			}
+			else
+			{
+				policy.completed(job, (now - dispatched[e.job]) / 1000.0);
+				completed++;
+				for (int i = dag.childOffsets[e.job]; i < dag.childOffsets[e.job + 1]; i++)
+				{
+					int child = dag.children[i];
+					if (--pending[child] == 0)
+					{
+						ready.add(workflow.jobList.get(child));
+					}
+				}
+			}
+		}
+		if (completed < n)
+		{
+			throw new IllegalStateException("Only " + completed + " of " + n + " jobs completed, the DAG has a cycle.");
+		}
+		return now;
+	}
+
+
+	public static void main(String[] args)
+	{
+		try
+		{
+			File path = new File(args[0]).getAbsoluteFile();
+			File folder = path.isDirectory() ? path : path.getParentFile();
+			Workflow workflow = new LocalWorkflow("simulation", folder.getParent(), folder.getName(), false);
+			WorkflowTrace trace = WorkflowTrace.read(new File(args[1]));
+			WorkflowSimulator simulator = new WorkflowSimulator(workflow, trace);
+
+			List<String> keys = new ArrayList<String>();
+			List<String[]> values = new ArrayList<String[]>();
+			for (int i = 2; i < args.length; i++)
+			{
+				int eq = args[i].indexOf('=');
+				keys.add(args[i].substring(0, eq));
+				values.add(args[i].substring(eq + 1).split(","));
+			}
+
+			System.out.println("Traced makespan: " + trace.makespan() + " ms, " + trace.entries.size() + " jobs.");
+			System.out.println("Dispatch overhead: local " + simulator.overhead[LOCAL] + " ms, faas " + simulator.overhead[FAAS]
+				+ " ms. ACK latency: local " + simulator.ackLatency[LOCAL] + " ms, faas " + simulator.ackLatency[FAAS] + " ms.");
+			System.out.println(String.format("%12s %8s %8s  %s", "Makespan", "Local", "FaaS", "Settings"));
+
+			// Every combination of the settings
+			int[] choice = new int[keys.size()];
+			while (true)
+			{
+				Properties prop = new Properties();
+				StringBuilder settings = new StringBuilder();
+				for (int k = 0; k < keys.size(); k++)
+				{
+					prop.setProperty(keys.get(k), values.get(k)[choice[k]]);
+					settings.append(keys.get(k)).append('=').append(values.get(k)[choice[k]]).append(' ');
+				}
+				int[] jobs = new int[2];
+				long makespan = simulator.simulate(prop, jobs);
+				System.out.println(String.format("%9d ms %8d %8d  %s", makespan, jobs[LOCAL], jobs[FAAS], settings.toString().trim()));
+
+				int k = keys.size() - 1;
+				while ((k >= 0) && (++choice[k] == values.get(k).length))
+				{
+					choice[k--] = 0;
+				}
+				if (k < 0)
+				{
+					break;
+				}
+			}
+		} catch (Exception e)
+		{
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package net.qyjohn.dewev3.manager;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.qyjohn.dewev3.worker.JobTiming;
+
+/**
+ *
+ * The execution trace of a workflow: one tab-separated line per job with its
+ * id, name, tier (local or faas), dispatch and completion times (ms from the
+ * start of the workflow), the phases of MakespanReport (ms, -1 when the
+ * worker sent no timings), and the bytes of its input and output files (-1
+ * when the DAX gives no sizes). Lines starting with # are comments.
+ *
+ * The scheduler writes a trace for every workflow when traceDir is set, and
+ * WorkflowSimulator replays it.
+ *
+ */
+
+public class WorkflowTrace
+{
+	public final static String HEADER = "# id\tname\ttier\tdispatch\tcomplete\tqueue\tbin\tin\texec\tout\tack\tinBytes\toutBytes";
+
+	/**
+	 *
+	 * The trace of one job
+	 *
+	 */
+
+	public static class Entry
+	{
+		public String id, name;
+		public boolean local;
+		public long dispatch, complete, inBytes, outBytes;
+		public long[] phases;	// in the order of MakespanReport.PHASES, null without timings
+
+		/**
+		 *
+		 * The time the job held a worker: downloads, execution and uploads
+		 *
+		 */
+
+		public long busy()
+		{
+			return phases[1] + phases[2] + phases[3] + phases[4];
+		}
+
+		public long io()
+		{
+			return phases[1] + phases[2] + phases[4];
+		}
+	}
+
+	public Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+
+	/**
+	 *
+	 * Write the trace of a completed workflow.
+	 *
+	 */
+
+	public static void write(File file, Workflow workflow, long begin, AtomicLongArray dispatchTimes, AtomicLongArray completeTimes, AtomicReferenceArray<JobTiming> timings) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+		try
+		{
+			out.println("# workflow " + workflow.uuid + " " + workflow.bucket + " " + workflow.prefix);
+			out.println(HEADER);
+			for (WorkflowJob job : workflow.jobList)
+			{
+				int j = job.index;
+				long dispatched = dispatchTimes.get(j), completed = completeTimes.get(j);
+				JobTiming t = timings.get(j);
+				StringBuilder sb = new StringBuilder();
+				sb.append(job.jobId).append('\t').append(job.jobName).append('\t').append(job.local ? "local" : "faas");
+				sb.append('\t').append(dispatched - begin).append('\t').append(completed - begin);
+				if (t != null)
+				{
+					sb.append('\t').append(Math.max(0, t.start - dispatched)).append('\t').append(t.bin).append('\t').append(t.in);
+					sb.append('\t').append(t.exec).append('\t').append(t.out).append('\t').append(Math.max(0, completed - t.sent));
+				}
+				else
+				{
+					sb.append("\t-1\t-1\t-1\t-1\t-1\t-1");
+				}
+				sb.append('\t').append(bytes(workflow.files, job.inFiles)).append('\t').append(bytes(workflow.files, job.outFiles));
+				out.println(sb.toString());
+			}
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	static long bytes(WorkflowFiles files, int[] list)
+	{
+		long total = 0;
+		for (int f : list)
+		{
+			if (files.sizes[f] < 0)
+			{
+				return -1;
+			}
+			total += files.sizes[f];
+		}
+		return total;
+	}
+
+
+	/**
+	 *
+	 * Read a trace file.
+	 *
+	 */
+
+	public static WorkflowTrace read(File file) throws IOException
+	{
+		WorkflowTrace trace = new WorkflowTrace();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.startsWith("#") || line.trim().isEmpty())
+				{
+					continue;
+				}
+				String[] v = line.split("\t");
+				Entry e = new Entry();
+				e.id       = v[0];
+				e.name     = v[1];
+				e.local    = v[2].equals("local");
+				e.dispatch = Long.parseLong(v[3]);
+				e.complete = Long.parseLong(v[4]);
+				if (!v[5].equals("-1"))
+				{
+					e.phases = new long[MakespanReport.PHASES.length];
+					for (int p = 0; p < e.phases.length; p++)
+					{
+						e.phases[p] = Long.parseLong(v[5 + p]);
+					}
+				}
+				e.inBytes  = Long.parseLong(v[11]);
+				e.outBytes = Long.parseLong(v[12]);
+				trace.entries.put(e.id, e);
+			}
+		} finally
+		{
+			in.close();
+		}
+		return trace;
+	}
+
+
+	/**
+	 *
+	 * The makespan of the traced run, in ms
+	 *
+	 */
+
+	public long makespan()
+	{
+		long makespan = 0;
+		for (Entry e : entries.values())
+		{
+			makespan = Math.max(makespan, e.complete);
+		}
+		return makespan;
+	}
+}
@@ -0,0 +1,151 @@
+package net.qyjohn.dewev3.worker;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ *
+ * Single-flight registry of the files transferred by a local worker, shared
+ * by its executors and transfer threads.
+ *
+ * Each file has a future, completed once the file is in the local folder
+ * (downloaded, or produced locally and uploaded). The first thread to claim
+ * a file transfers it, the others wait on its future and wake up as soon as
+ * the transfer completes, so concurrent requests for the same file share one
+ * transfer and nobody polls.
+ *
+ */
+
+public class FileRegistry
+{
+	ConcurrentHashMap<String, CompletableFuture<Void>> futures = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	Set<String> claimed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 *
+	 * The future of a file, created if nobody asked for the file yet.
+	 *
+	 */
+
+	public CompletableFuture<Void> future(String file)
+	{
+		CompletableFuture<Void> future = futures.get(file);
+		if (future == null)
+		{
+			CompletableFuture<Void> created = new CompletableFuture<Void>();
+			future = futures.putIfAbsent(file, created);
+			if (future == null)
+			{
+				future = created;
+			}
+		}
+		return future;
+	}
+
+
+	/**
+	 *
+	 * Returns true for the first caller only, who must then transfer the file
+	 * and call completed().
+	 *
+	 */
+
+	public boolean claim(String file)
+	{
+		return claimed.add(file);
+	}
+
+
+	/**
+	 *
+	 * Start a new transfer of a file produced locally: its future is replaced
+	 * by a pending one if it had completed, and the file counts as claimed so
+	 * that it is never downloaded. Returns the future of the transfer.
+	 *
+	 */
+
+	public CompletableFuture<Void> restart(String file)
+	{
+		claimed.add(file);
+		while (true)
+		{
+			CompletableFuture<Void> future = future(file);
+			if (!future.isDone())
+			{
+				return future;
+			}
+			CompletableFuture<Void> pending = new CompletableFuture<Void>();
+			if (futures.replace(file, future, pending))
+			{
+				return pending;
+			}
+		}
+	}
+
+
+	public void completed(String file)
+	{
+		future(file).complete(null);
+	}
+
+
+	/**
+	 *
+	 * Forget the files whose names start with a prefix (the files of a completed
+	 * workflow). Returns the number of files dropped.
+	 *
+	 */
+
+	public int evict(String prefix)
+	{
+		int n = 0;
+		for (Iterator<String> i = futures.keySet().iterator(); i.hasNext(); )
+		{
+			if (i.next().startsWith(prefix))
+			{
+				i.remove();
+				n++;
+			}
+		}
+		for (Iterator<String> i = claimed.iterator(); i.hasNext(); )
+		{
+			if (i.next().startsWith(prefix))
+			{
+				i.remove();
+			}
+		}
+		return n;
+	}
+
+
+	/**
+	 *
+	 * Wait until a file is in the local folder.
+	 *
+	 */
+
+	public void await(String file) throws InterruptedException, ExecutionException
+	{
+		future(file).get();
+	}
+
+
+	/**
+	 *
+	 * Wait until all the files are in the local folder.
+	 *
+	 */
+
+	public void await(Collection<String> files) throws InterruptedException, ExecutionException
+	{
+		CompletableFuture<?>[] all = new CompletableFuture<?>[files.size()];
+		int i = 0;
+		for (String file : files)
+		{
+			all[i++] = future(file);
+		}
+		CompletableFuture.allOf(all).get();
+	}
+}
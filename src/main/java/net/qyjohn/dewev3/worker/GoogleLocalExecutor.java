@@ -3,6 +3,7 @@ package net.qyjohn.dewev3.worker;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import org.dom4j.*;
 import org.dom4j.io.SAXReader;
@@ -23,13 +24,13 @@ public class GoogleLocalExecutor extends Thread
 	public Publisher ackSender;
 	public String workflow, bucket, prefix, jobId, jobName, command;
 	public String tempDir = "/tmp";
-	public ConcurrentHashMap<String, Boolean> cachedFiles;
-	Stack<PubsubMessage> jobStack;
+	public FileRegistry cachedFiles;
+	BlockingQueue<PubsubMessage> jobQueue;
 
 	// Logging
 	final static Logger logger = Logger.getLogger(GoogleLocalExecutor.class);
 
-	public GoogleLocalExecutor(String workflow, String tempDir, ConcurrentHashMap<String, Boolean> cachedFiles)
+	public GoogleLocalExecutor(String workflow, String tempDir, FileRegistry cachedFiles)
 	{
 		this.workflow	= workflow;
 		this.tempDir 	= tempDir;
@@ -47,26 +48,27 @@ public class GoogleLocalExecutor extends Thread
 		}		
 	}
 	
-	public void setJobStack(Stack<PubsubMessage> stack)
+	public void setJobQueue(BlockingQueue<PubsubMessage> queue)
 	{
-		this.jobStack = stack;
+		this.jobQueue = queue;
 	}
 
+	/**
+	 *
+	 * Take the jobs as they arrive, until interrupted by the worker.
+	 *
+	 */
+
 	public void run()
 	{
 		while (true)
 		{
 			try
 			{
-				if (!jobStack.empty())
-				{
-					PubsubMessage job = jobStack.pop();
-					executeJob(job);
-				}
-				else
-				{
-					sleep(new Random().nextInt(100));
-				}
+				executeJob(jobQueue.take());
+			} catch (InterruptedException e)
+			{
+				return;
 			} catch (Exception e)
 			{
 				System.out.println(e.getMessage());
@@ -83,6 +85,7 @@ public class GoogleLocalExecutor extends Thread
 			bucket   = job.getAttributesOrThrow("bucket");
 			prefix   = job.getAttributesOrThrow("prefix");
 			jobId    = job.getAttributesOrThrow("id");
+			JobTiming timing = new JobTiming();
 				
 			// Download job definition file 
 			download(0, jobId);
@@ -102,15 +105,18 @@ public class GoogleLocalExecutor extends Thread
 				download(1, f);
 				runCommand("chmod u+x " + tempDir + "/" + f, tempDir);
 			}
+			timing.bin = timing.lap();
 			st = new StringTokenizer(root.attribute("inFiles").getValue());
 			while (st.hasMoreTokens()) 
 			{
 				String f = st.nextToken();
 				download(2, f);
 			}
+			timing.in = timing.lap();
      
 			// Execute the command and wait for it to complete
 			runCommand(command, tempDir);
+			timing.exec = timing.lap();
 
 			st = new StringTokenizer(root.attribute("outFiles").getValue());
 			while (st.hasMoreTokens()) 
@@ -118,9 +124,10 @@ public class GoogleLocalExecutor extends Thread
 				String f = st.nextToken();
 				upload(f);
 			}
+			timing.out = timing.lap();
 
 			// Acknowledge the job to be completed
-			ackJob(jobId);
+			ackJob(jobId, timing.encode());
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());
@@ -136,9 +143,8 @@ public class GoogleLocalExecutor extends Thread
 	 
 	public void download(int type, String filename)
 	{
-		if (cachedFiles.get(filename) == null)
+		if (cachedFiles.claim(filename))
 		{
-			cachedFiles.put(filename, new Boolean(false));
 			String key=null, outfile = null;
 			if (type==0)	// Job definition
 			{
@@ -174,20 +180,17 @@ public class GoogleLocalExecutor extends Thread
 				System.out.println(e.getMessage());
 				e.printStackTrace();
 			}
-			cachedFiles.put(filename, new Boolean(true));
+			cachedFiles.completed(filename);
 		}
 		else
 		{
-			while (cachedFiles.get(filename).booleanValue() == false)
+			try
 			{
-				try
-				{
-					sleep(50);
-				} catch (Exception e)
-				{
-					System.out.println(e.getMessage());
-					e.printStackTrace();
-				}
+				cachedFiles.await(filename);
+			} catch (Exception e)
+			{
+				System.out.println(e.getMessage());
+				e.printStackTrace();
 			}
 		}			
 	}
@@ -200,7 +203,7 @@ public class GoogleLocalExecutor extends Thread
 	 
 	public void upload(String filename)
 	{
-		cachedFiles.put(filename, new Boolean(false));
+		cachedFiles.restart(filename);
 		String key  = prefix + "/workdir/" + filename;
 		String file = tempDir + "/" + filename;
 
@@ -216,7 +219,7 @@ public class GoogleLocalExecutor extends Thread
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 		}
-		cachedFiles.put(filename, new Boolean(true));
+		cachedFiles.completed(filename);
 	}
 	
 	/**
@@ -225,12 +228,14 @@ public class GoogleLocalExecutor extends Thread
 	 *
 	 */
 	 
-	public void ackJob(String id)
+	public void ackJob(String id, String timing)
 	{
 		try
 		{
 			PubsubMessage message = PubsubMessage.newBuilder()
 				.setData(ByteString.copyFrom(id, "UTF-8"))
+				.putAttributes("timing", timing)
+				.putAttributes("tier", LambdaHandlerBase.LOCAL)
 				.build();
 			ackSender.publish(message);
 		} catch (Exception e) 
@@ -4,6 +4,8 @@ import java.io.*;
 import java.nio.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import org.dom4j.*;
 import org.dom4j.io.SAXReader;
 import org.apache.commons.io.IOUtils;
@@ -23,10 +25,13 @@ public class GoogleLocalWorker extends Thread
 
 
 	public String tempDir = "/tmp";
-	public ConcurrentHashMap<String, Boolean> cachedFiles;
-	// For long running jobs
+	public FileRegistry cachedFiles;
+	// For long running jobs. The executors block on the queue until the subscriber hands them a job.
 	volatile boolean completed = false, cleanUp = false;
-	Stack<PubsubMessage> jobStack = new Stack<PubsubMessage>();
+	LinkedBlockingQueue<PubsubMessage> jobQueue = new LinkedBlockingQueue<PubsubMessage>();
+	CountDownLatch done = new CountDownLatch(1);
+	GoogleLocalExecutor executors[];
+	Subscriber subscriber;
 	// Logging
 	final static Logger logger = Logger.getLogger(GoogleLocalWorker.class);
 
@@ -53,14 +58,14 @@ public class GoogleLocalWorker extends Thread
 			subscriptionAdminClient = SubscriptionAdminClient.create();
 			setupTopicSubscriber();
 
-			cachedFiles = new ConcurrentHashMap<String, Boolean>();
+			cachedFiles = new FileRegistry();
 			int nProc = Runtime.getRuntime().availableProcessors();
 
-			GoogleLocalExecutor executors[] = new GoogleLocalExecutor[nProc];
+			executors = new GoogleLocalExecutor[nProc];
 			for (int i=0; i<nProc; i++)
 			{
 				executors[i] = new GoogleLocalExecutor(uuid, tempDir, cachedFiles);
-				executors[i].setJobStack(jobStack);
+				executors[i].setJobQueue(jobQueue);
 				executors[i].start();
 			}
 		} catch (Exception e)
@@ -85,22 +90,12 @@ public class GoogleLocalWorker extends Thread
 				public void receiveMessage(PubsubMessage message, AckReplyConsumer consumer) 
 				{
 					// handle incoming message, then ack/nack the received message
-					jobStack.push(message);
+					jobQueue.add(message);
 					consumer.ack();
 				}
 			};
-			Subscriber subscriber = null;
-			try 
-			{
-				// Create a subscriber for "my-subscription-id" bound to the message receiver
-				subscriber = Subscriber.defaultBuilder(subscriptionName, receiver).build();
-				subscriber.startAsync();
-			} finally 
-			{
-				if (subscriber != null) 
-				{
-				}	
-			}
+			subscriber = Subscriber.defaultBuilder(subscriptionName, receiver).build();
+			subscriber.startAsync();
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());
@@ -118,16 +113,21 @@ public class GoogleLocalWorker extends Thread
 	 
 	public void run()
 	{
-		while (!completed)
+		try
 		{
-			try
-			{
-				sleep(100);
-			} catch (Exception e)
-			{
-				// The longStream has been deleted. The workflow has completed execution
-				completed = true;
-			}
+			done.await();
+		} catch (InterruptedException e)
+		{
+		}
+
+		// Stop receiving jobs, and stop the idle executors
+		if (subscriber != null)
+		{
+			subscriber.stopAsync();
+		}
+		for (GoogleLocalExecutor executor : executors)
+		{
+			executor.interrupt();
 		}
 
 		// Remove temp folder
@@ -155,5 +155,6 @@ public class GoogleLocalWorker extends Thread
 	public void setAsCompleted()
 	{
 		completed = true;
+		done.countDown();
 	}
 }
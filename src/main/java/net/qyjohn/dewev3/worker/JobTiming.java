@@ -0,0 +1,91 @@
+package net.qyjohn.dewev3.worker;
+
+/**
+ *
+ * The phases of a job descriptor on a worker, sent with the ACK of each of
+ * its jobs as a "timing" message attribute: when the worker took the
+ * descriptor (epoch ms), the time spent downloading binaries, downloading
+ * input files, executing and uploading output files (ms), and when the ACK
+ * was sent (epoch ms). The attribute is the comma-separated list of these
+ * values, in that order.
+ *
+ * Timestamps come from the clock of the worker, so queue wait and ACK latency
+ * computed by the scheduler include the clock skew between the two hosts.
+ *
+ */
+
+public class JobTiming
+{
+	public long start, bin, in, exec, out, sent;
+	long mark;
+
+	public JobTiming()
+	{
+		start = mark = System.currentTimeMillis();
+	}
+
+	public JobTiming(long start, long bin, long in, long exec, long out, long sent)
+	{
+		this.start = start;
+		this.bin   = bin;
+		this.in    = in;
+		this.exec  = exec;
+		this.out   = out;
+		this.sent  = sent;
+	}
+
+
+	/**
+	 *
+	 * The time since the previous call (or since the job was taken), in ms
+	 *
+	 */
+
+	public long lap()
+	{
+		long now = System.currentTimeMillis();
+		long elapsed = now - mark;
+		mark = now;
+		return elapsed;
+	}
+
+
+	/**
+	 *
+	 * The attribute value, with the ACK sent now
+	 *
+	 */
+
+	public String encode()
+	{
+		sent = System.currentTimeMillis();
+		return start + "," + bin + "," + in + "," + exec + "," + out + "," + sent;
+	}
+
+	/**
+	 *
+	 * Parse an attribute value. Returns null for a missing or malformed value.
+	 *
+	 */
+
+	public static JobTiming parse(String value)
+	{
+		if (value == null)
+		{
+			return null;
+		}
+		String[] v = value.split(",");
+		if (v.length != 6)
+		{
+			return null;
+		}
+		try
+		{
+			return new JobTiming(Long.parseLong(v[0]), Long.parseLong(v[1]), Long.parseLong(v[2]),
+				Long.parseLong(v[3]), Long.parseLong(v[4]), Long.parseLong(v[5]));
+		} catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+}
@@ -36,22 +36,44 @@ public class LambdaHandlerBase
 	public String workflow, bucket, prefix, ackQueue;
 	public int MAX_RETRY = 5;
 	public String deweDir = "/tmp/dewe";
-	// Common job definitions
-	LinkedList<String> commands, jobs, binFiles, inFiles, outFiles;
+	// The execution tiers, as sent in the tier attribute of the ACKs
+	public final static String FAAS = "faas", LOCAL = "local";
+	// Common job definitions. Each entry of commands holds the commands to run
+	// in order: a single job, or the jobs of a fused chain.
+	LinkedList<List<String>> commands;
+	LinkedList<String> jobs, binFiles, inFiles, outFiles;
+	JobTiming timing;
 
 	// Logging
 	final static Logger logger = Logger.getLogger(LambdaHandlerV2.class);
 
+	/**
+	 *
+	 * A Kinesis batch may hold the descriptors of several workflows sharing
+	 * the jobStream. Each workflow (bucket and prefix) is handled on its own,
+	 * in a clean execution folder, and ACKed with its own UUID.
+	 *
+	 */
+
 	public void deweHandler(KinesisEvent event)
 	{
-		prepareJobs(event);
-		createEnv();
-		executeJobs();
-		cleanUp();
+		for (List<Element> descriptors : groupRecords(event))
+		{
+			prepareJobs(descriptors);
+			createEnv();
+			executeJobs();
+			cleanUp();
+		}
 	}
 	
 	
-	public void prepareJobs(KinesisEvent event)
+	/**
+	 *
+	 * Parse the records of a batch, grouped by workflow, bucket and prefix
+	 *
+	 */
+
+	public Collection<List<Element>> groupRecords(KinesisEvent event)
 	{
 		ClientConfiguration clientConfig = new ClientConfiguration();
 		clientConfig.setMaxConnections(1000);
@@ -59,63 +81,160 @@ public class LambdaHandlerBase
 		s3Client = new AmazonS3Client(clientConfig);
 		sqsClient = new AmazonSQSClient();
 
-		List<KinesisEvent.KinesisEventRecord> records = event.getRecords();
-		commands = new LinkedList<String>();
+		LinkedHashMap<String, List<Element>> groups = new LinkedHashMap<String, List<Element>>();
+		for(KinesisEvent.KinesisEventRecord rec : event.getRecords())
+		{
+			try
+			{
+				String jobXML = new String(rec.getKinesis().getData().array());
+				Element root = DocumentHelper.parseText(jobXML).getRootElement();
+				String key = root.attributeValue("workflow") + "|" + root.attributeValue("bucket") + "|" + root.attributeValue("prefix");
+				List<Element> group = groups.get(key);
+				if (group == null)
+				{
+					group = new ArrayList<Element>();
+					groups.put(key, group);
+				}
+				group.add(root);
+			} catch (Exception e)
+			{
+				System.out.println(e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return groups.values();
+	}
+
+
+	/**
+	 *
+	 * Collect the jobs of the descriptors of one workflow
+	 *
+	 */
+
+	public void prepareJobs(List<Element> descriptors)
+	{
+		commands = new LinkedList<List<String>>();
 		jobs     = new LinkedList<String>();
 		binFiles = new LinkedList<String>();
 		inFiles  = new LinkedList<String>();
 		outFiles = new LinkedList<String>();
 		
-		for(KinesisEvent.KinesisEventRecord rec : records)
+		for (Element root : descriptors)
 		{
-			try
+			// Basic workflow information, the same for all the descriptors
+			workflow = root.attributeValue("workflow");
+			bucket   = root.attributeValue("bucket");
+			prefix   = root.attributeValue("prefix");
+			ackQueue = root.attributeValue("ackQueue");
+			
+			// Cluster and chain descriptors have one <job> element per member job.
+			// A chain adds one list of commands, in chain order, a cluster one
+			// singleton list per member.
+			boolean chain = root.getName().equals("chain");
+			if (chain || root.getName().equals("cluster"))
 			{
-				// Basic workflow information
-				String jobXML = new String(rec.getKinesis().getData().array());
-				Element job = DocumentHelper.parseText(jobXML).getRootElement();
-				workflow = job.attributeValue("workflow");
-				bucket   = job.attributeValue("bucket");
-				prefix   = job.attributeValue("prefix");
-				ackQueue = job.attributeValue("ackQueue");
-				
-				// Job definitions, binaries, input and output files
-				jobs.add(job.attributeValue("id"));
-				commands.add(job.attributeValue("command"));
-				StringTokenizer st;
-				st = new StringTokenizer(job.attribute("binFiles").getValue());
-				while (st.hasMoreTokens()) 
+				List<String> sequence = new ArrayList<String>();
+				for (Iterator i = root.elementIterator("job"); i.hasNext();)
 				{
-					String t = st.nextToken();
-					if (!binFiles.contains(t))
+					Element job = (Element) i.next();
+					addJob(job);
+					if (chain)
 					{
-						binFiles.add(t);						
+						sequence.add(job.attributeValue("command"));
 					}
-				}
-				st = new StringTokenizer(job.attribute("inFiles").getValue());
-				while (st.hasMoreTokens()) 
-				{
-					String t = st.nextToken();
-					if (!inFiles.contains(t))
+					else
 					{
-						inFiles.add(t);						
+						commands.add(Collections.singletonList(job.attributeValue("command")));
 					}
 				}
-				st = new StringTokenizer(job.attribute("outFiles").getValue());
-				while (st.hasMoreTokens()) 
+				if (chain)
 				{
-					String t = st.nextToken();
-					if (!outFiles.contains(t))
-					{
-						outFiles.add(t);						
-					}
-				}		
-			} catch (Exception e)
+					commands.add(sequence);
+				}
+			}
+			else
 			{
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				addJob(root);
+				commands.add(Collections.singletonList(root.attributeValue("command")));
 			}
 		}
 	}
+	
+	
+	/**
+	 *
+	 * Add a job, its binaries, input and output files. Files shared by several
+	 * jobs are only downloaded / uploaded once.
+	 *
+	 */
+	 
+	public void addJob(Element job)
+	{
+		jobs.add(job.attributeValue("id"));
+		StringTokenizer st;
+		st = new StringTokenizer(job.attribute("binFiles").getValue());
+		while (st.hasMoreTokens()) 
+		{
+			String t = st.nextToken();
+			if (!binFiles.contains(t))
+			{
+				binFiles.add(t);						
+			}
+		}
+		st = new StringTokenizer(job.attribute("inFiles").getValue());
+		while (st.hasMoreTokens()) 
+		{
+			String t = st.nextToken();
+			if (!inFiles.contains(t))
+			{
+				inFiles.add(t);						
+			}
+		}
+		st = new StringTokenizer(job.attribute("outFiles").getValue());
+		while (st.hasMoreTokens()) 
+		{
+			String t = st.nextToken();
+			if (!outFiles.contains(t))
+			{
+				outFiles.add(t);						
+			}
+		}		
+	}
+
+	/**
+	 *
+	 * The ACK of a job, tagged with its workflow UUID so that a scheduler
+	 * running several workflows can route it, with its phase timings (see
+	 * JobTiming), and with the tier that ran it, so that the scheduler knows
+	 * which copy of a speculated job ACKed.
+	 *
+	 */
+	 
+	public static SendMessageRequest ack(String ackQueue, String workflow, String id)
+	{
+		return ack(ackQueue, workflow, id, null);
+	}
+
+	public static SendMessageRequest ack(String ackQueue, String workflow, String id, String timing)
+	{
+		return ack(ackQueue, workflow, id, timing, FAAS);
+	}
+
+	public static SendMessageRequest ack(String ackQueue, String workflow, String id, String timing, String tier)
+	{
+		SendMessageRequest request = new SendMessageRequest(ackQueue, id);
+		request.addMessageAttributesEntry("tier", new MessageAttributeValue().withDataType("String").withStringValue(tier));
+		if (workflow != null)
+		{
+			request.addMessageAttributesEntry("workflow", new MessageAttributeValue().withDataType("String").withStringValue(workflow));
+		}
+		if (timing != null)
+		{
+			request.addMessageAttributesEntry("timing", new MessageAttributeValue().withDataType("String").withStringValue(timing));
+		}
+		return request;
+	}
 
 	/**
 	 *
@@ -265,31 +384,40 @@ public class LambdaHandlerBase
 	public void executeJobs()
 	{
 		// Download binaries and input files
+		timing = new JobTiming();
 		for (String f : binFiles)
 		{
 			download_one("bin", f, deweDir);
 		}
+		timing.bin = timing.lap();
 		for (String f : inFiles)
 		{
 			download_one("workdir", f, deweDir);
 		}
+		timing.in = timing.lap();
 				
 		// Run all commands
-		for (String com : commands)
+		for (List<String> sequence : commands)
 		{
-			runCommand(deweDir + "/" + com, deweDir);	
+			for (String com : sequence)
+			{
+				runCommand(deweDir + "/" + com, deweDir);	
+			}
 		}		
+		timing.exec = timing.lap();
 				
 		// Upload output files
 		for (String f : outFiles)
 		{
 			upload_one(f);
 		}		
+		timing.out = timing.lap();
 					
 		// ACK all jobs
+		String t = timing.encode();
 		for (String id : jobs)
 		{
-			sqsClient.sendMessage(ackQueue, id);
+			sqsClient.sendMessage(ack(ackQueue, workflow, id, t));
 		}		
 		
 	}
@@ -0,0 +1,201 @@
+package net.qyjohn.dewev3.worker;
+
+/**
+ *
+ * net.qyjohn.dewev3.worker.LambdaHandlerCached::deweHandler
+ *
+ * Everything in /tmp/dewe, parallel download, parallel execution, and a cache
+ * in /tmp/dewe-cache that survives from one invocation to the next in a warm
+ * container. Downloaded inputs and uploaded outputs are kept in the cache (least
+ * recently used first out), so jobs routed to the same shard with data-affinity
+ * partition keys find the files shared with earlier jobs without going to S3.
+ * Binaries are cached by bucket, prefix and name. Input and output files are
+ * also keyed by the workflow UUID: a workflow run again at the same prefix may
+ * have other inputs, and rewrites its intermediate files.
+ *
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+public class LambdaHandlerCached extends LambdaHandlerParallel
+{
+	public final static String CACHE_DIR = "/tmp/dewe-cache";
+	public final static long MAX_CACHE_BYTES = 256 * 1024 * 1024;
+
+	// Shared by all the invocations in the container
+	static LinkedHashMap<String, Long> cache = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	static long cachedBytes = 0, hits = 0, misses = 0;
+
+
+	/**
+	 *
+	 * Create the execution folder and the cache folder
+	 *
+	 */
+
+	public void createEnv()
+	{
+		runCommand("mkdir -p " + deweDir + " " + CACHE_DIR, "/tmp");
+	}
+
+
+	/**
+	 *
+	 * Copy a file from the cache when possible, otherwise download it and cache it
+	 *
+	 */
+
+	public void download_one(String folder, String filename, String dir)
+	{
+		File cached = cacheFile(folder, filename);
+		File target = new File(dir, filename);
+		boolean hit;
+		synchronized (cache)
+		{
+			hit = (cache.get(cached.getName()) != null);
+			if (hit)
+			{
+				hits++;
+			}
+			else
+			{
+				misses++;
+			}
+		}
+
+		if (hit)
+		{
+			try
+			{
+				logger.info("Cache hit " + filename);
+				Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				if (folder.equals("bin"))
+				{
+					target.setExecutable(true);
+				}
+				return;
+			} catch (Exception e)
+			{
+				// Evicted while being copied, download it instead
+				logger.info("Cache copy failed for " + filename + ": " + e.getMessage());
+			}
+		}
+		super.download_one(folder, filename, dir);
+		addToCache(target, cached);
+	}
+
+
+	/**
+	 *
+	 * Upload a file, keeping a copy for the jobs consuming it on this container
+	 *
+	 */
+
+	public void upload_one(String filename)
+	{
+		super.upload_one(filename);
+		addToCache(new File(deweDir, filename), cacheFile("workdir", filename));
+	}
+
+
+	/**
+	 *
+	 * Clean up the execution folder, leaving the cache for the next invocation
+	 *
+	 */
+
+	public void cleanUp()
+	{
+		synchronized (cache)
+		{
+			logger.info("Cache: " + hits + " hits, " + misses + " misses, " + cache.size() + " files, " + cachedBytes + " bytes");
+		}
+		super.cleanUp();
+	}
+
+
+	/**
+	 *
+	 * The cache file of a key, named by the SHA-256 of the whole key, so two
+	 * keys never share a file
+	 *
+	 */
+
+	File cacheFile(String folder, String filename)
+	{
+		String key = bucket + "/" + prefix + "/" + folder + "/" + filename;
+		if (!folder.equals("bin"))
+		{
+			key = workflow + "/" + key;
+		}
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes("UTF-8"));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest)
+			{
+				name.append(String.format("%02x", b));
+			}
+			return new File(CACHE_DIR, name.toString());
+		} catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 *
+	 * Copy a file into the cache. The copy is written next to its cache file
+	 * without holding the lock, then moved into place under the lock, so other
+	 * threads look up the cache while large files are copied.
+	 *
+	 */
+
+	void addToCache(File file, File cached)
+	{
+		try
+		{
+			if (!file.exists() || (file.length() > MAX_CACHE_BYTES / 4))
+			{
+				return;
+			}
+			synchronized (cache)
+			{
+				if (cache.get(cached.getName()) != null)
+				{
+					return;
+				}
+			}
+			File copy = new File(CACHE_DIR, cached.getName() + "." + Thread.currentThread().getId());
+			Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			synchronized (cache)
+			{
+				if (cache.get(cached.getName()) != null)
+				{
+					// Cached by another thread in the meantime
+					copy.delete();
+					return;
+				}
+				Files.move(copy.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				cache.put(cached.getName(), file.length());
+				cachedBytes += file.length();
+
+				// Evict the least recently used files
+				Iterator<Map.Entry<String, Long>> i = cache.entrySet().iterator();
+				while ((cachedBytes > MAX_CACHE_BYTES) && i.hasNext())
+				{
+					Map.Entry<String, Long> entry = i.next();
+					new File(CACHE_DIR, entry.getKey()).delete();
+					cachedBytes -= entry.getValue();
+					i.remove();
+				}
+			}
+		} catch (Exception e)
+		{
+			logger.error("Unable to cache " + file + ": " + e.getMessage());
+		}
+	}
+}
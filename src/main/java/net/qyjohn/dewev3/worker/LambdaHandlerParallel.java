@@ -5,9 +5,12 @@ package net.qyjohn.dewev3.worker;
  * net.qyjohn.dewev3.worker.LambdaHandlerParallel::deweHandler
  *
  * Everything in /tmp/dewe, transient caching, parallel download, parallel execution
+ * (one thread per entry of commands, so the jobs of a fused chain stay in order)
  *
  */
 
+import java.util.List;
+
 public class LambdaHandlerParallel extends LambdaHandlerBase
 {
 	
@@ -31,6 +34,7 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 	public void executeJobs()
 	{
 		// Parallel download of binaries using multiple threads
+		timing = new JobTiming();
 		if (!binFiles.isEmpty())
 		{
 			try
@@ -51,6 +55,7 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 				e.printStackTrace();
 			}
 		}		
+		timing.bin = timing.lap();
 		
 		// Parallel donwload of input files using multiple threads
 		if (!inFiles.isEmpty())
@@ -73,8 +78,9 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 				e.printStackTrace();
 			}
 		}		
+		timing.in = timing.lap();
 
-		// Parallel execution of commands using multiple threads
+		// Parallel execution of commands using multiple threads, the jobs of a fused chain in order on one thread
 		try
 		{
 			if (!commands.isEmpty())
@@ -82,7 +88,7 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 				Executor executor[] = new Executor[commands.size()];
 				for (int i=0; i<commands.size(); i++)
 				{
-					executor[i] = new Executor(deweDir + "/" + commands.get(i), deweDir);
+					executor[i] = new Executor(commands.get(i), deweDir);
 					executor[i].start();
 				}
 				for (int i=0; i<commands.size(); i++)
@@ -95,6 +101,7 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 		}
+		timing.exec = timing.lap();
 		
 		// Parallel upload of output files using multiple threads
 		try
@@ -117,16 +124,18 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 		}
+		timing.out = timing.lap();
 		
 		// Parallel ACK of all jobs using multiple threads
 		try
 		{
 			if (!jobs.isEmpty())
 			{
+				String t = timing.encode();
 				Acker acker[] = new Acker[jobs.size()];
 				for (int i=0; i<jobs.size(); i++)
 				{
-					acker[i] = new Acker(jobs.get(i));
+					acker[i] = new Acker(jobs.get(i), t);
 					acker[i].start();
 				}
 				for (int i=0; i<jobs.size(); i++)
@@ -188,32 +197,37 @@ public class LambdaHandlerParallel extends LambdaHandlerBase
 	
 	class Executor extends Thread
 	{
-		public String cmd, dir;
+		public List<String> cmds;
+		public String dir;
 		
-		public Executor(String cmd, String dir)
+		public Executor(List<String> cmds, String dir)
 		{
-			this.cmd = cmd;
+			this.cmds = cmds;
 			this.dir = dir;
 		}
 		
 		public void run()
 		{
-			runCommand(cmd, dir);
+			for (String cmd : cmds)
+			{
+				runCommand(dir + "/" + cmd, dir);
+			}
 		}
 	}
 
 	class Acker extends Thread
 	{
-		public String id;
+		public String id, timing;
 		
-		public Acker(String id)
+		public Acker(String id, String timing)
 		{
 			this.id = id;
+			this.timing = timing;
 		}
 		
 		public void run()
 		{
-			sqsClient.sendMessage(ackQueue, id);
+			sqsClient.sendMessage(ack(ackQueue, workflow, id, timing));
 		}
 	}
 }
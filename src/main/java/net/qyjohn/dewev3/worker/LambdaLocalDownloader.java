@@ -3,33 +3,40 @@ package net.qyjohn.dewev3.worker;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.*;
 import com.amazonaws.services.s3.model.*;
 import org.apache.log4j.Logger;
 
-public class LambdaLocalDownloadThread extends Thread
+/**
+ *
+ * The download stage of the local worker: downloads binaries and input files
+ * from S3 to the folder of their workflow, on a pool of threads sharing one
+ * S3 client.
+ *
+ */
+
+public class LambdaLocalDownloader
 {
 	// S3 side requirements
 	public AmazonS3Client s3Client;
 	// Local requirements
 	public String tempDir = "/tmp";
-	ConcurrentHashMap<String, Boolean> cachedFiles;
-	ConcurrentLinkedQueue<String> downloadQueue;
+	FileRegistry cachedFiles;
+	ThreadPoolExecutor pool;
 
 	// Logging
-	final static Logger logger = Logger.getLogger(LambdaLocalDownloadThread.class);
+	final static Logger logger = Logger.getLogger(LambdaLocalDownloader.class);
 	 
-	public LambdaLocalDownloadThread(String tempDir, ConcurrentHashMap<String, Boolean> cachedFiles, ConcurrentLinkedQueue<String> downloadQueue)
+	public LambdaLocalDownloader(String tempDir, FileRegistry cachedFiles, ThreadPoolExecutor pool)
 	{
 		this.tempDir = tempDir;
 		this.cachedFiles = cachedFiles;
-		this.downloadQueue = downloadQueue;
+		this.pool = pool;
 
 		ClientConfiguration clientConfig = new ClientConfiguration();
-		clientConfig.setMaxConnections(1000);
+		clientConfig.setMaxConnections(pool.getMaximumPoolSize());
 		clientConfig.setSocketTimeout(60*1000);
 		this.s3Client = new AmazonS3Client(clientConfig);
 	}
@@ -38,19 +45,20 @@ public class LambdaLocalDownloadThread extends Thread
 	{
 		try
 		{
-			if (cachedFiles.get(job) == null)
+			// Only the first request for a file downloads it, the executors wait on its future
+			if (cachedFiles.claim(job))
 			{
 				// The filename comes in the following format
-				// bucket|prefix|bin|filename 
-				// bucket|prefix|workdir|filename 
-				cachedFiles.put(job, new Boolean(false));
+				// workflow|bucket|prefix|bin|filename 
+				// workflow|bucket|prefix|workdir|filename 
 				String[] info = job.split("\\|");
-				String bucket = info[0];
-				String prefix = info[1];
-				String folder = info[2];
-				String file   = info[3];
+				String workflow = info[0];
+				String bucket = info[1];
+				String prefix = info[2];
+				String folder = info[3];
+				String file   = info[4];
 				String key    = prefix + "/" + folder + "/" + file;
-				String outfile= tempDir + "/" + file;
+				String outfile= LambdaLocalWorkerV2.getWorkDir(tempDir, workflow) + "/" + file;
 		
 				// Download until success
 //				logger.debug("Downloading " + job);
@@ -87,24 +95,10 @@ public class LambdaLocalDownloadThread extends Thread
 						logger.error("Retry after 1000 ms... ");
 						System.out.println(e1.getMessage());
 						e1.printStackTrace();
-						sleep(1000);
-					}
-				}
-				cachedFiles.put(job, new Boolean(true));
-			}
-			else
-			{
-				while (cachedFiles.get(job).booleanValue() == false)
-				{
-					try
-					{
-						sleep(100);
-					} catch (Exception e)
-					{
-						System.out.println(e.getMessage());
-						e.printStackTrace();
+						Thread.sleep(1000);
 					}
 				}
+				cachedFiles.completed(job);
 			}
 		} catch (Exception e)
 		{
@@ -113,26 +107,20 @@ public class LambdaLocalDownloadThread extends Thread
 		}
 	}
 
-	public void run()
+	/**
+	 *
+	 * Queue a file, in the workflow|bucket|prefix|folder|filename format, for the pool
+	 *
+	 */
+
+	public void submit(final String file)
 	{
-		while (true)
+		pool.execute(new Runnable()
 		{
-			try
-			{
-				String file = downloadQueue.poll();
-				if (file != null)
-				{
-					download_one(file);
-				}
-				else
-				{
-					sleep(1000);
-				}
-			} catch (Exception e)
+			public void run()
 			{
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				download_one(file);
 			}
-		}
+		});
 	}
 }
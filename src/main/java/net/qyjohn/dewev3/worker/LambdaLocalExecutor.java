@@ -29,14 +29,14 @@ public class LambdaLocalExecutor extends Thread
 	public AmazonSQSClient sqsClient = new AmazonSQSClient();
 	public String workflow, bucket, prefix, jobId, jobName, command;
 	public String tempDir = "/tmp";
-	public ConcurrentHashMap<String, Boolean> cachedFiles;
+	public FileRegistry cachedFiles;
 	ConcurrentLinkedQueue<String> jobQueue;
 
 	// Logging
 	final static Logger logger = Logger.getLogger(LambdaLocalExecutor.class);
 	public boolean serialS3 = false;
 	 
-	public LambdaLocalExecutor(String ackQueue, String tempDir, ConcurrentHashMap<String, Boolean> cachedFiles)
+	public LambdaLocalExecutor(String ackQueue, String tempDir, FileRegistry cachedFiles)
 	{
 		this.ackQueue = ackQueue;
 		this.tempDir = tempDir;
@@ -159,9 +159,8 @@ public class LambdaLocalExecutor extends Thread
 	{
 			try
 			{
-				if (cachedFiles.get(filename) == null)
+				if (cachedFiles.claim(filename))
 				{
-					cachedFiles.put(filename, new Boolean(false));
 					String key     = prefix + "/" + folder + "/" + filename;
 					String outfile = tempDir + "/" + filename;
 		
@@ -194,21 +193,11 @@ public class LambdaLocalExecutor extends Thread
 							sleep(1000);
 						}
 					}
-					cachedFiles.put(filename, new Boolean(true));
+					cachedFiles.completed(filename);
 				}
 				else
 				{
-					while (cachedFiles.get(filename).booleanValue() == false)
-					{
-						try
-						{
-							sleep(100);
-						} catch (Exception e)
-						{
-							System.out.println(e.getMessage());
-							e.printStackTrace();
-						}
-					}
+					cachedFiles.await(filename);
 				}
 			} catch (Exception e)
 			{
@@ -276,7 +265,7 @@ public class LambdaLocalExecutor extends Thread
 	{
 			try
 			{
-				cachedFiles.put(filename, new Boolean(false));
+				cachedFiles.restart(filename);
 				String key  = prefix + "/workdir/" + filename;
 				String file = tempDir + "/" + filename;
 
@@ -287,7 +276,7 @@ public class LambdaLocalExecutor extends Thread
 					try
 					{
 						s3Client.putObject(new PutObjectRequest(bucket, key, new File(file)));
-						cachedFiles.put(filename, new Boolean(true));
+						cachedFiles.completed(filename);
 						success = true;
 					} catch (Exception e1)
 					{
@@ -3,8 +3,6 @@ package net.qyjohn.dewev3.worker;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.lambda.runtime.*; 
 import com.amazonaws.services.lambda.runtime.events.*;
@@ -20,75 +18,46 @@ import org.dom4j.io.SAXReader;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
-public class LambdaLocalExecutorV2 extends Thread
+/**
+ *
+ * Runs the job descriptors of the local worker: downloads the binaries and
+ * input files through the download stage, runs the jobs and uploads their
+ * outputs through the upload stage, then ACKs. A command starts once the
+ * ResourceSlots admit its job, and its CPU time, peak memory, output size and
+ * run time go to the ResourceProfiles. Holds no per-job state, so a single
+ * instance serves all the threads of the executor stage.
+ *
+ */
+
+public class LambdaLocalExecutorV2
 {
 	// Common components
 	public String ackQueue;
-	public AmazonS3Client s3Client;
-	public AmazonSQSClient sqsClient = new AmazonSQSClient();
-	public String workflow, bucket, prefix, jobId, jobName, command;
+	public AmazonSQSClient sqsClient;
 	public String tempDir = "/tmp";
-	public ConcurrentHashMap<String, Boolean> cachedFiles;
-	public ConcurrentLinkedQueue<String> jobQueue;
-	ConcurrentLinkedQueue<String> downloadQueue;
-	ConcurrentLinkedQueue<String> uploadQueue;
+	public FileRegistry cachedFiles;
+	LambdaLocalDownloader downloader;
+	LambdaLocalUploader uploader;
+	ResourceSlots slots;
+	ResourceProfiles profiles;
+	ProcessSampler sampler;
 
 	// Logging
 	final static Logger logger = Logger.getLogger(LambdaLocalExecutorV2.class);
-	public boolean serialS3 = false;
 	 
-	public LambdaLocalExecutorV2(String ackQueue, String tempDir, ConcurrentHashMap<String, Boolean> cachedFiles)
+	public LambdaLocalExecutorV2(String ackQueue, String tempDir, FileRegistry cachedFiles, AmazonSQSClient sqsClient,
+		LambdaLocalDownloader downloader, LambdaLocalUploader uploader,
+		ResourceSlots slots, ResourceProfiles profiles, ProcessSampler sampler)
 	{
 		this.ackQueue = ackQueue;
 		this.tempDir = tempDir;
 		this.cachedFiles = cachedFiles;
-		ClientConfiguration clientConfig = new ClientConfiguration();
-		clientConfig.setMaxConnections(1000);
-		clientConfig.setSocketTimeout(60*1000);
-		this.s3Client = new AmazonS3Client(clientConfig);
-	}
-	
-	public void setQueues(ConcurrentLinkedQueue<String> jobQueue, ConcurrentLinkedQueue<String> downloadQueue, ConcurrentLinkedQueue<String> uploadQueue)
-	{
-		this.jobQueue  = jobQueue;
-		this.downloadQueue = downloadQueue;
-		this.uploadQueue = uploadQueue;
-	}
-
-	public void run()
-	{
-		while (true)
-		{
-			try
-			{
-				String jobXML = jobQueue.poll();
-				if (jobXML != null)
-				{
-					executeJob(jobXML);
-				}
-				else
-				{
-					sleep(500);
-				}
-/*				if (!jobQueue.isEmpty())
-				{
-					String jobXML = jobQueue.poll();
-					if (jobXML != null)
-					{
-						executeJob(jobXML);
-					}
-				}
-				else
-				{
-					sleep(1000);
-				}
-*/
-			} catch (Exception e)
-			{
-				System.out.println(e.getMessage());
-				e.printStackTrace();
-			}
-		}
+		this.sqsClient = sqsClient;
+		this.downloader = downloader;
+		this.uploader = uploader;
+		this.slots = slots;
+		this.profiles = profiles;
+		this.sampler = sampler;
 	}
 
 	public void executeJob(String jobXML) 
@@ -96,57 +65,35 @@ public class LambdaLocalExecutorV2 extends Thread
 
 		try
 		{
-			Element job = DocumentHelper.parseText(jobXML).getRootElement();
-			bucket   = job.attributeValue("bucket");
-			prefix   = job.attributeValue("prefix");
-			jobId    = job.attributeValue("id");
-			jobName  = job.attributeValue("name");
-			command  = job.attributeValue("command");
-
-			logger.info(jobId + "\t" + jobName);
+			Element root = DocumentHelper.parseText(jobXML).getRootElement();
+			String workflow = root.attributeValue("workflow");
+			String bucket   = root.attributeValue("bucket");
+			String prefix   = root.attributeValue("prefix");
 			logger.debug(jobXML);
 
-			// Download binary and input files
-			// Extract all files to download
-			List<String> downloadList = new ArrayList<String> ();
-			List<String> uploadList   = new ArrayList<String> ();
-			StringTokenizer st;
-			st = new StringTokenizer(job.attribute("binFiles").getValue());
-			while (st.hasMoreTokens()) 
+			// A fused chain runs its jobs in order, then ACKs all of them
+			List<Element> jobs = new ArrayList<Element>();
+			if (root.getName().equals("chain"))
 			{
-				downloadList.add(bucket + "|" + prefix + "|bin|" + st.nextToken());
-				
+				for (Iterator i = root.elementIterator("job"); i.hasNext();)
+				{
+					jobs.add((Element) i.next());
+				}
 			}
-			st = new StringTokenizer(job.attribute("inFiles").getValue());
-			while (st.hasMoreTokens()) 
+			else
 			{
-				downloadList.add(bucket + "|" + prefix + "|workdir|" + st.nextToken());
+				jobs.add(root);
 			}
-			st = new StringTokenizer(job.attribute("outFiles").getValue());
-			while (st.hasMoreTokens()) 
+			JobTiming timing = new JobTiming();
+			for (Element job : jobs)
 			{
-				uploadList.add(bucket + "|" + prefix + "|workdir|" + st.nextToken());
+				runJob(job, workflow, bucket, prefix, timing);
 			}
-
-			// Download all binaries and input files
-			for (String file : downloadList)
+			String t = timing.encode();
+			for (Element job : jobs)
 			{
-				downloadQueue.add(file);
+				sqsClient.sendMessage(LambdaHandlerBase.ack(ackQueue, workflow, job.attributeValue("id"), t, LambdaHandlerBase.LOCAL));
 			}
-			waitFor(downloadList);
-			
-			// Execute the command and wait for it to complete
-			runCommand(tempDir + "/" + command, tempDir);
-			
-			// Upload all output files
-			for (String file : uploadList)
-			{
-				uploadQueue.add(file);
-			}
-			waitFor(uploadList);
-
-			// Acknowledge the job to be completed
-			sqsClient.sendMessage(ackQueue, jobId);
 		} catch (Exception e)
 		{
 			System.out.println(jobXML);
@@ -156,40 +103,115 @@ public class LambdaLocalExecutorV2 extends Thread
 	}
 
 
-	public void waitFor(List<String> files)
+	/**
+	 *
+	 * Download the binaries and input files of a job, run it and upload its output
+	 * files, adding the time of each phase to the timing of the descriptor
+	 *
+	 */
+
+	public void runJob(Element job, String workflow, String bucket, String prefix, JobTiming timing) throws Exception
 	{
-		boolean done = false;
-		while (!done)
+		String jobId    = job.attributeValue("id");
+		String jobName  = job.attributeValue("name");
+		String command  = job.attributeValue("command");
+
+		logger.info(jobId + "\t" + jobName);
+
+		// Download binary and input files
+		// Extract all files to download, in the workflow|bucket|prefix|folder|filename format
+		String scope = workflow + "|" + bucket + "|" + prefix;
+		List<String> binList      = new ArrayList<String> ();
+		List<String> inList       = new ArrayList<String> ();
+		List<String> uploadList   = new ArrayList<String> ();
+		StringTokenizer st;
+		st = new StringTokenizer(job.attribute("binFiles").getValue());
+		while (st.hasMoreTokens()) 
+		{
+			binList.add(scope + "|bin|" + st.nextToken());
+			
+		}
+		st = new StringTokenizer(job.attribute("inFiles").getValue());
+		while (st.hasMoreTokens()) 
+		{
+			inList.add(scope + "|workdir|" + st.nextToken());
+		}
+		st = new StringTokenizer(job.attribute("outFiles").getValue());
+		while (st.hasMoreTokens()) 
+		{
+			uploadList.add(scope + "|workdir|" + st.nextToken());
+		}
+
+		// Download all binaries and input files, in parallel
+		timing.lap();
+		for (String file : binList)
 		{
-			// Assumes that things are done until we find out it is not true
-			done = true;
-			for (String file : files)
+			downloader.submit(file);
+		}
+		for (String file : inList)
+		{
+			downloader.submit(file);
+		}
+		waitFor(binList);
+		timing.bin += timing.lap();
+		waitFor(inList);
+		timing.in += timing.lap();
+		
+		// Execute the command once its resources are free, and wait for it to complete
+		String workDir = LambdaLocalWorkerV2.getWorkDir(tempDir, workflow);
+		ResourceSlots.Request slot = (slots == null) ? null : slots.acquire(job);
+		try
+		{
+			long start = System.currentTimeMillis();
+			double[] usage = runCommand(workDir + "/" + command, workDir);
+			double runtime = (System.currentTimeMillis() - start) / 1000.0;
+			long disk = 0;
+			st = new StringTokenizer(job.attribute("outFiles").getValue());
+			while (st.hasMoreTokens())
 			{
-				Boolean state = cachedFiles.get(file);
-				if (state == null)	// Not started yet
-				{
-					done = false;
-				}
-				else if (state.booleanValue() == false) // Not finished yet
-				{
-					done = false;
-				}
-				try	// take a break
-				{
-					sleep(50);
-				} catch (Exception e){}
+				disk += new File(workDir, st.nextToken()).length();
 			}
+			double cores = ((usage[1] < 0) || (runtime <= 0)) ? -1 : usage[1] / runtime;
+			profiles.observe(jobName, cores, usage[0], disk / (1024.0 * 1024.0), runtime);
+		} finally
+		{
+			if (slot != null)
+			{
+				slots.release(slot);
+			}
+		}
+		timing.exec += timing.lap();
+		
+		// Upload all output files
+		for (String file : uploadList)
+		{
+			cachedFiles.restart(file);
+			uploader.submit(file);
 		}
+		waitFor(uploadList);
+		timing.out += timing.lap();
+	}
+
+
+	/**
+	 *
+	 * Wait until the transfer threads have downloaded or uploaded all the files
+	 *
+	 */
+
+	public void waitFor(List<String> files) throws Exception
+	{
+		cachedFiles.await(files);
 	}
 
 	
 	/**
 	 *
-	 * Run a command 
+	 * Run a command. Returns its peak memory in MB and CPU time in seconds, -1 when unknown.
 	 *
 	 */
 	 
-	public void runCommand(String command, String dir) throws Exception
+	public double[] runCommand(String command, String dir) throws Exception
 	{ 
 			logger.debug(command);
 
@@ -197,6 +219,8 @@ public class LambdaLocalExecutorV2 extends Thread
 			String env_lib = "LD_LIBRARY_PATH=$LD_LIBRARY_PATH:" + dir;
 			String[] env = {env_path, env_lib};
 			Process p = Runtime.getRuntime().exec(command, env, new File(dir));
+			long pid = ProcessSampler.pid(p);
+			sampler.watch(pid);
 			BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
 			String result = "";
 			String line;
@@ -207,5 +231,6 @@ public class LambdaLocalExecutorV2 extends Thread
 			in.close();
 			p.waitFor();
 			logger.debug(result);
+			return sampler.unwatch(pid);
 	}
 }
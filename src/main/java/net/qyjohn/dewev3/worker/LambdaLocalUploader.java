@@ -3,33 +3,39 @@ package net.qyjohn.dewev3.worker;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.*;
 import com.amazonaws.services.s3.model.*;
 import org.apache.log4j.Logger;
 
-public class LambdaLocalUploadThread extends Thread
+/**
+ *
+ * The upload stage of the local worker: uploads the output files from the
+ * folder of their workflow to S3, on a pool of threads sharing one S3 client.
+ *
+ */
+
+public class LambdaLocalUploader
 {
 	// S3 side requirements
 	public AmazonS3Client s3Client;
 	// Local requirements
 	public String tempDir = "/tmp";
-	ConcurrentHashMap<String, Boolean> cachedFiles;
-	ConcurrentLinkedQueue<String> uploadQueue;
+	FileRegistry cachedFiles;
+	ThreadPoolExecutor pool;
 
 	// Logging
-	final static Logger logger = Logger.getLogger(LambdaLocalUploadThread.class);
+	final static Logger logger = Logger.getLogger(LambdaLocalUploader.class);
 	 
-	public LambdaLocalUploadThread(String tempDir, ConcurrentHashMap<String, Boolean> cachedFiles, ConcurrentLinkedQueue<String> uploadQueue)
+	public LambdaLocalUploader(String tempDir, FileRegistry cachedFiles, ThreadPoolExecutor pool)
 	{
 		this.tempDir = tempDir;
 		this.cachedFiles = cachedFiles;
-		this.uploadQueue = uploadQueue;
+		this.pool = pool;
 
 		ClientConfiguration clientConfig = new ClientConfiguration();
-		clientConfig.setMaxConnections(1000);
+		clientConfig.setMaxConnections(pool.getMaximumPoolSize());
 		clientConfig.setSocketTimeout(60*1000);
 		this.s3Client = new AmazonS3Client(clientConfig);
 	}
@@ -39,17 +45,18 @@ public class LambdaLocalUploadThread extends Thread
 		try
 		{
 			// The filename comes in the following format
-			// bucket|prefix|bin|filename 
-			// bucket|prefix|workdir|filename 
-			cachedFiles.put(job, new Boolean(false));
+			// workflow|bucket|prefix|bin|filename 
+			// workflow|bucket|prefix|workdir|filename 
+			cachedFiles.restart(job);
 			String[] info = job.split("\\|");
-			String bucket = info[0];
-			String prefix = info[1];
-			String folder = info[2];
-			String file   = info[3];
+			String workflow = info[0];
+			String bucket = info[1];
+			String prefix = info[2];
+			String folder = info[3];
+			String file   = info[4];
 
 			String key  = prefix + "/" + folder + "/" + file;
-			String filename = tempDir + "/" + file;
+			String filename = LambdaLocalWorkerV2.getWorkDir(tempDir, workflow) + "/" + file;
 
 			logger.debug("Uploading " + filename + " to " + key);
 			boolean success = false;
@@ -58,7 +65,7 @@ public class LambdaLocalUploadThread extends Thread
 				try
 				{
 					s3Client.putObject(new PutObjectRequest(bucket, key, new File(filename)));
-					cachedFiles.put(job, new Boolean(true));
+					cachedFiles.completed(job);
 					success = true;
 				} catch (Exception e1)
 				{
@@ -66,7 +73,7 @@ public class LambdaLocalUploadThread extends Thread
 					logger.error("Retry after 1000 ms...");
 					System.out.println(e1.getMessage());
 					e1.printStackTrace();						
-					sleep(1000);
+					Thread.sleep(1000);
 				}
 			}
 		} catch (Exception e)
@@ -76,26 +83,20 @@ public class LambdaLocalUploadThread extends Thread
 		}
 	}
 
-	public void run()
+	/**
+	 *
+	 * Queue a file, in the workflow|bucket|prefix|folder|filename format, for the pool
+	 *
+	 */
+
+	public void submit(final String file)
 	{
-		while (true)
+		pool.execute(new Runnable()
 		{
-			try
-			{
-				String file = uploadQueue.poll();
-				if (file != null)
-				{
-					upload_one(file);
-				}
-				else
-				{
-					sleep(1000);
-				}
-			} catch (Exception e)
+			public void run()
 			{
-				System.out.println(e.getMessage());
-				e.printStackTrace();
+				upload_one(file);
 			}
-		}
+		});
 	}
 }
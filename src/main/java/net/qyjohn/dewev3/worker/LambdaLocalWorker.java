@@ -28,7 +28,7 @@ public class LambdaLocalWorker extends Thread
 	public AmazonKinesisClient kinesisClient;
 	public String tempDir = "/tmp";
 	public String longQueue, ackQueue;
-	public ConcurrentHashMap<String, Boolean> cachedFiles;
+	public FileRegistry cachedFiles;
 	volatile boolean completed = false;
 	ConcurrentLinkedQueue<String> jobQueue = new ConcurrentLinkedQueue<String>();
 	Stack<String> uploadStack = new Stack<String>();
@@ -59,7 +59,7 @@ public class LambdaLocalWorker extends Thread
 
 			s3Client = new AmazonS3Client();
 			kinesisClient = new AmazonKinesisClient();
-			cachedFiles = new ConcurrentHashMap<String, Boolean>();
+			cachedFiles = new FileRegistry();
 			
 			nProc = Runtime.getRuntime().availableProcessors();
 			LambdaLocalExecutor executors[] = new LambdaLocalExecutor[nProc];
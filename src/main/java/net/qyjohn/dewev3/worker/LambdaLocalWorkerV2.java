@@ -3,8 +3,8 @@ package net.qyjohn.dewev3.worker;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.lambda.runtime.*; 
 import com.amazonaws.services.lambda.runtime.events.*;
@@ -14,29 +14,56 @@ import com.amazonaws.services.kinesis.*;
 import com.amazonaws.services.kinesis.model.*;
 import org.dom4j.*;
 import org.dom4j.io.SAXReader;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import com.amazonaws.services.sqs.*;
 import com.amazonaws.services.sqs.model.*;
 
+/**
+ *
+ * The local worker serving the longQueue, as three stages, each on its own
+ * ThreadPoolExecutor: the executors run the job descriptors, the downloaders
+ * and the uploaders move the files between S3 and the local folders. Pool
+ * threads start on demand and stop after a minute idle. The stages are set
+ * in config.properties:
+ *
+ *   localExecutors, localDownloads, localUploads: the threads of each stage
+ *     (3, 10 and 10 per processor by default)
+ *   localJobQueue: the order the descriptors run in, priority (the upward
+ *     rank set by the scheduler, the default), fifo or lifo
+ *   localTransferQueue: the order of the transfers, fifo (the default) or lifo
+ *   localIntake: the number of descriptors waiting for an executor at which
+ *     the worker stops taking descriptors from the longQueue (2 per processor
+ *     by default)
+ *
+ * A job command runs only once its cores, memory and scratch disk are free
+ * (see ResourceSlots), also set in config.properties:
+ *
+ *   localResources: false to run commands as soon as an executor has them
+ *   localCores, localMemory: the cores and memory (MB) of the worker, by
+ *     default the processors and the physical memory of the host
+ *   localBackfill: false to admit jobs strictly by priority
+ *   localProfiles: the file keeping the resource profiles learned from the
+ *     jobs run on this worker
+ *
+ */
+
 public class LambdaLocalWorkerV2 extends Thread
 {
 	// Common components
 	int nProc = 1;
-	public AmazonS3Client s3Client;
 	public AmazonSQSClient sqsClient = new AmazonSQSClient();
-	public AmazonKinesisClient kinesisClient;
 	public String tempDir = "/tmp";
 	public String longQueue, ackQueue;
 	volatile boolean completed = false;
+	Semaphore intake;	// free places for descriptors waiting for an executor
 
-	ConcurrentLinkedQueue<String> jobQueue = new ConcurrentLinkedQueue<String>();
-	ConcurrentLinkedQueue<String> downloadQueue = new ConcurrentLinkedQueue<String>();	
-	ConcurrentLinkedQueue<String> uploadQueue   = new ConcurrentLinkedQueue<String>();	
-	public ConcurrentHashMap<String, Boolean> cachedFiles = new ConcurrentHashMap<String, Boolean>();
+	ThreadPoolExecutor executors, downloads, uploads;
+	LambdaLocalExecutorV2 executor;
+	ResourceProfiles profiles;
+	public FileRegistry cachedFiles = new FileRegistry();
 
-//	Stack<String> uploadStack = new Stack<String>();
-//	Stack<String> downloadStack = new Stack<String>();
 	// Logging
 	final static Logger logger = Logger.getLogger(LambdaLocalWorkerV2.class);
 
@@ -61,74 +88,185 @@ public class LambdaLocalWorkerV2 extends Thread
 			longQueue = prop.getProperty("longQueue");
 			ackQueue  = prop.getProperty("ackQueue");
 
-			s3Client = new AmazonS3Client();
-			kinesisClient = new AmazonKinesisClient();
-			cachedFiles = new ConcurrentHashMap<String, Boolean>();
-			
 			nProc = Runtime.getRuntime().availableProcessors();
-			int nExecutors = 3 * nProc;
-			LambdaLocalExecutorV2 executors[] = new LambdaLocalExecutorV2[nExecutors];
-			for (int i=0; i<nExecutors; i++)
-			{
-				executors[i] = new LambdaLocalExecutorV2(ackQueue, tempDir, cachedFiles);
-				executors[i].setQueues(jobQueue, downloadQueue, uploadQueue);
-				executors[i].start();
-			}
-			int nCollectors = 10 * nProc;
-			LambdaLocalDownloadThread downloads[] = new LambdaLocalDownloadThread[nCollectors];
-			LambdaLocalUploadThread uploads[] = new LambdaLocalUploadThread[nCollectors];
-			for (int i=0; i<nCollectors; i++)
+			intake = new Semaphore(Integer.parseInt(prop.getProperty("localIntake", "" + 2 * nProc)));
+			executors = createStage("local-executor", Integer.parseInt(prop.getProperty("localExecutors", "" + 3 * nProc)),
+				createQueue(prop.getProperty("localJobQueue", "priority")));
+			downloads = createStage("local-download", Integer.parseInt(prop.getProperty("localDownloads", "" + 10 * nProc)),
+				createQueue(prop.getProperty("localTransferQueue", "fifo")));
+			uploads   = createStage("local-upload", Integer.parseInt(prop.getProperty("localUploads", "" + 10 * nProc)),
+				createQueue(prop.getProperty("localTransferQueue", "fifo")));
+			profiles = new ResourceProfiles(prop.getProperty("localProfiles"));
+			ResourceSlots slots = null;
+			if (Boolean.parseBoolean(prop.getProperty("localResources", "true")))
 			{
-				downloads[i] = new LambdaLocalDownloadThread(tempDir, cachedFiles, downloadQueue);
-				downloads[i].start();
-				uploads[i] = new LambdaLocalUploadThread(tempDir, cachedFiles, uploadQueue);
-				uploads[i].start();
+				slots = new ResourceSlots(Long.parseLong(prop.getProperty("localCores", "" + nProc)),
+					Long.parseLong(prop.getProperty("localMemory", "" + getPhysicalMemory())), new File(tempDir),
+					Boolean.parseBoolean(prop.getProperty("localBackfill", "true")), profiles);
 			}
+			executor = new LambdaLocalExecutorV2(ackQueue, tempDir, cachedFiles, sqsClient,
+				new LambdaLocalDownloader(tempDir, cachedFiles, downloads), new LambdaLocalUploader(tempDir, cachedFiles, uploads),
+				slots, profiles, new ProcessSampler());
 		} catch (Exception e)
 		{
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 		}
 	}
+
+
+	/**
+	 *
+	 * The physical memory of the host in MB, from /proc/meminfo, 0 when unknown.
+	 *
+	 */
+
+	static long getPhysicalMemory()
+	{
+		try
+		{
+			for (String line : FileUtils.readLines(new File("/proc/meminfo")))
+			{
+				if (line.startsWith("MemTotal:"))
+				{
+					return Long.parseLong(line.substring(9).trim().split("\\s+")[0]) / 1024;
+				}
+			}
+		} catch (Exception e)
+		{
+			logger.warn("Unable to read the physical memory: " + e.getMessage());
+		}
+		return 0;
+	}
+
+
+	/**
+	 *
+	 * A pool of daemon threads, started on demand and stopped when idle.
+	 *
+	 */
+
+	static ThreadPoolExecutor createStage(final String name, int threads, BlockingQueue<Runnable> queue)
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadFactory()
+		{
+			AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 *
+	 * The queue of a stage: priority (for LocalJobs only), fifo or lifo.
+	 *
+	 */
+
+	static BlockingQueue<Runnable> createQueue(String type)
+	{
+		if (type.equals("priority"))
+		{
+			return new PriorityBlockingQueue<Runnable>();
+		}
+		else if (type.equals("lifo"))
+		{
+			return new LinkedBlockingDeque<Runnable>()
+			{
+				public boolean offer(Runnable r)
+				{
+					return offerFirst(r);
+				}
+			};
+		}
+		return new LinkedBlockingQueue<Runnable>();
+	}
+
 		
 	/**
 	 *
 	 * When the job handler runs on an EC2 instance, it is a long running thread.
+	 * Each descriptor waiting for an executor holds one of the localIntake
+	 * permits, given back when an executor takes it. The thread blocks until a
+	 * permit is free, then long polls the longQueue for as many descriptors as
+	 * there are free permits (at most 10).
 	 *
 	 */
 	 
 	public void run()
 	{
-		int threshold = 2 * nProc;
-		
 		while (!completed)
 		{
+			int permits = 0;
 			try
 			{
-				if (jobQueue.size() < threshold)
-				{
-					ReceiveMessageResult result = sqsClient.receiveMessage(longQueue);
-					for (Message message : result.getMessages())
-					{
-						String jobXML = message.getBody();
-						logger.debug(jobXML);
-						jobQueue.add(jobXML);
-						sqsClient.deleteMessage(longQueue, message.getReceiptHandle());
-					}									
-				}
-				else
+				intake.acquire();
+				permits = 1 + intake.drainPermits();
+				int wanted = Math.min(10, permits);
+				intake.release(permits - wanted);
+				permits = wanted;
+
+				ReceiveMessageRequest request = new ReceiveMessageRequest(longQueue).withMaxNumberOfMessages(wanted).withWaitTimeSeconds(20);
+				ReceiveMessageResult result = sqsClient.receiveMessage(request);
+				for (Message message : result.getMessages())
 				{
-					sleep(500);
-				}
+					String jobXML = message.getBody();
+					logger.debug(jobXML);
+					executors.execute(new LocalJob(jobXML, executor, intake));
+					permits--;
+					sqsClient.deleteMessage(longQueue, message.getReceiptHandle());
+				}									
+			} catch (InterruptedException e)
+			{
+				// Woken up by setAsCompleted()
 			} catch (Exception e)
 			{
 				System.out.println(e.getMessage());
 				e.printStackTrace();			
+			} finally
+			{
+				intake.release(permits);
 			}
 		}
 	}
 	
 	
+	/**
+	 *
+	 * The folder holding the files of a workflow. Workflows sharing this worker
+	 * may use the same file names, and a bucket / prefix may be run again (or
+	 * twice at the same time), so each workflow UUID gets its own folder.
+	 *
+	 */
+	 
+	public static String getWorkDir(String tempDir, String workflow)
+	{
+		File dir = new File(tempDir + "/" + workflow);
+		dir.mkdirs();
+		return dir.getPath();
+	}
+	
+	
+	/**
+	 *
+	 * Forget the files of a completed workflow, and delete its folder.
+	 *
+	 */
+	 
+	public void completed(String workflow)
+	{
+		int files = cachedFiles.evict(workflow + "|");
+		FileUtils.deleteQuietly(new File(tempDir + "/" + workflow));
+		logger.debug("Workflow " + workflow + " completed, " + files + " local files dropped.");
+	}
+	
+	
 	/**
 	 *
 	 * Mark the workflow as completed. This is used for the EC2 job handler to exit gracefully.
@@ -138,6 +276,11 @@ public class LambdaLocalWorkerV2 extends Thread
 	public void setAsCompleted()
 	{
 		completed = true;
+		interrupt();
+		executors.shutdown();
+		downloads.shutdown();
+		uploads.shutdown();
+		profiles.save();
 	}
 	
 	public static void main(String[] args)
@@ -0,0 +1,78 @@
+package net.qyjohn.dewev3.worker;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * A job descriptor waiting in the local job queue. Jobs with a higher priority
+ * (the upward rank set by the scheduler) are taken first, jobs with the same
+ * priority in arrival order. Running it gives back its intake permit, if it
+ * holds one, and hands the descriptor to the executor.
+ *
+ */
+
+public class LocalJob implements Comparable<LocalJob>, Runnable
+{
+	static AtomicLong counter = new AtomicLong();
+	public String jobXML;
+	public float priority;
+	long sequence;
+	LambdaLocalExecutorV2 executor;
+	Semaphore intake;
+
+	public LocalJob(String jobXML)
+	{
+		this(jobXML, null, null);
+	}
+
+	public LocalJob(String jobXML, LambdaLocalExecutorV2 executor, Semaphore intake)
+	{
+		this.jobXML   = jobXML;
+		this.priority = getPriority(jobXML);
+		this.sequence = counter.getAndIncrement();
+		this.executor = executor;
+		this.intake   = intake;
+	}
+
+	public void run()
+	{
+		if (intake != null)
+		{
+			intake.release();
+		}
+		executor.executeJob(jobXML);
+	}
+
+	public int compareTo(LocalJob other)
+	{
+		int c = Float.compare(other.priority, priority);
+		return (c != 0) ? c : Long.compare(sequence, other.sequence);
+	}
+
+
+	/**
+	 *
+	 * Read the priority attribute without parsing the whole descriptor. Jobs from
+	 * a scheduler that does not set it get priority 0.
+	 *
+	 */
+
+	public static float getPriority(String jobXML)
+	{
+		int start = jobXML.indexOf(" priority=\"");
+		if (start < 0)
+		{
+			return 0;
+		}
+		start += 11;
+		int end = jobXML.indexOf('"', start);
+		try
+		{
+			return Float.parseFloat(jobXML.substring(start, end));
+		} catch (Exception e)
+		{
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package net.qyjohn.dewev3.worker;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import org.apache.commons.io.FileUtils;
+
+/**
+ *
+ * Samples the peak memory (VmHWM) and CPU time of the job processes from
+ * /proc, every PERIOD milliseconds, on Linux. The last sample before a
+ * process exits is its profile, so processes shorter than a period go
+ * unmeasured, and so do the children a process starts.
+ *
+ */
+
+public class ProcessSampler
+{
+	public final static long PERIOD = 250;
+	final static double TICKS = 100;	// USER_HZ, clock ticks per second in /proc/<pid>/stat
+
+	ConcurrentHashMap<Long, long[]> samples = new ConcurrentHashMap<Long, long[]>();	// peak memory (kB) and CPU ticks
+	ScheduledExecutorService timer;
+
+	public ProcessSampler()
+	{
+		if (!isSupported())
+		{
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "process-sampler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				for (Long pid : samples.keySet())
+				{
+					sample(pid);
+				}
+			}
+		}, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+	}
+
+	public static boolean isSupported()
+	{
+		return new File("/proc/self/stat").exists();
+	}
+
+
+	/**
+	 *
+	 * The process id, from Process.pid() on Java 9 and later, or from the pid
+	 * field of the UNIXProcess of Java 8. Returns -1 when neither is available.
+	 *
+	 */
+
+	public static long pid(Process p)
+	{
+		try
+		{
+			Method method = Process.class.getMethod("pid");
+			return ((Number) method.invoke(p)).longValue();
+		} catch (Exception e)
+		{
+			// Java 8
+		}
+		try
+		{
+			Field field = p.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return field.getLong(p);
+		} catch (Exception e)
+		{
+			return -1;
+		}
+	}
+
+
+	public void watch(long pid)
+	{
+		if ((timer != null) && (pid > 0))
+		{
+			samples.put(pid, new long[] {-1, -1});
+		}
+	}
+
+	/**
+	 *
+	 * Stop sampling a process. Returns its peak memory in MB and its CPU time in
+	 * seconds, -1 for the values never sampled.
+	 *
+	 */
+
+	public double[] unwatch(long pid)
+	{
+		long[] s = (pid > 0) ? samples.remove(pid) : null;
+		if (s == null)
+		{
+			return new double[] {-1, -1};
+		}
+		return new double[] {(s[0] < 0) ? -1 : s[0] / 1024.0, (s[1] < 0) ? -1 : s[1] / TICKS};
+	}
+
+	void sample(long pid)
+	{
+		try
+		{
+			long memory = -1;
+			for (String line : FileUtils.readLines(new File("/proc/" + pid + "/status")))
+			{
+				if (line.startsWith("VmHWM:"))
+				{
+					memory = Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+				}
+			}
+			String stat = FileUtils.readFileToString(new File("/proc/" + pid + "/stat"));
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+			long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);	// utime and stime
+			long[] s = samples.get(pid);
+			if ((s != null) && (memory >= 0))
+			{
+				samples.replace(pid, s, new long[] {Math.max(s[0], memory), ticks});
+			}
+		} catch (Exception e)
+		{
+			// The process has just exited
+		}
+	}
+}
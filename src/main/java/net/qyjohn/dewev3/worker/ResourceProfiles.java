@@ -0,0 +1,131 @@
+package net.qyjohn.dewev3.worker;
+
+import java.io.*;
+import java.util.*;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Resource profiles of the transformations, learned by the local worker from
+ * the jobs it runs: the cores used (CPU time over run time), the peak memory
+ * (MB), the scratch disk written (MB of output files) and the run time
+ * (seconds). Cores and run time are exponentially weighted averages, memory
+ * and disk the largest values seen, so that the profile errs on the safe side.
+ *
+ * The profiles are kept in a properties file, one name=cores,memory,disk,runtime
+ * line per transformation, saved every SAVE_EVERY observations.
+ *
+ */
+
+public class ResourceProfiles
+{
+	public final static int CORES = 0, MEMORY = 1, DISK = 2, RUNTIME = 3;
+	public final static double WEIGHT = 0.3;	// weight of the latest observation
+	public final static int SAVE_EVERY = 20;
+
+	String file;
+	HashMap<String, double[]> profiles = new HashMap<String, double[]>();
+	int unsaved = 0;
+	final static Logger logger = Logger.getLogger(ResourceProfiles.class);
+
+	public ResourceProfiles(String file)
+	{
+		this.file = file;
+		if ((file != null) && new File(file).exists())
+		{
+			try
+			{
+				Properties prop = new Properties();
+				InputStream input = new FileInputStream(file);
+				prop.load(input);
+				input.close();
+				for (String name : prop.stringPropertyNames())
+				{
+					String[] v = prop.getProperty(name).split(",");
+					double[] profile = new double[4];
+					for (int i = 0; i < profile.length; i++)
+					{
+						profile[i] = Double.parseDouble(v[i]);
+					}
+					profiles.put(name, profile);
+				}
+				logger.info("Loaded " + profiles.size() + " resource profiles from " + file);
+			} catch (Exception e)
+			{
+				logger.warn("Unable to load resource profiles " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 * The profile of a transformation, null if it never ran here. Unknown values are -1.
+	 *
+	 */
+
+	public synchronized double[] get(String name)
+	{
+		double[] profile = profiles.get(name);
+		return (profile == null) ? null : profile.clone();
+	}
+
+
+	/**
+	 *
+	 * Record a run of a job. Values that could not be measured are -1.
+	 *
+	 */
+
+	public synchronized void observe(String name, double cores, double memory, double disk, double runtime)
+	{
+		double[] profile = profiles.get(name);
+		if (profile == null)
+		{
+			profile = new double[] {-1, -1, -1, -1};
+			profiles.put(name, profile);
+		}
+		profile[CORES]   = average(profile[CORES], cores);
+		profile[RUNTIME] = average(profile[RUNTIME], runtime);
+		profile[MEMORY]  = Math.max(profile[MEMORY], memory);
+		profile[DISK]    = Math.max(profile[DISK], disk);
+		if (++unsaved >= SAVE_EVERY)
+		{
+			save();
+		}
+	}
+
+	static double average(double current, double observed)
+	{
+		if (observed < 0)
+		{
+			return current;
+		}
+		return (current < 0) ? observed : (1 - WEIGHT) * current + WEIGHT * observed;
+	}
+
+
+	public synchronized void save()
+	{
+		unsaved = 0;
+		if (file == null)
+		{
+			return;
+		}
+		Properties prop = new Properties();
+		for (Map.Entry<String, double[]> entry : profiles.entrySet())
+		{
+			double[] p = entry.getValue();
+			prop.setProperty(entry.getKey(), String.format(Locale.ROOT, "%.2f,%.0f,%.0f,%.3f", p[CORES], p[MEMORY], p[DISK], p[RUNTIME]));
+		}
+		try
+		{
+			OutputStream output = new FileOutputStream(file);
+			prop.store(output, "Resource profiles: cores, memory (MB), disk (MB), run time (s)");
+			output.close();
+		} catch (Exception e)
+		{
+			logger.warn("Unable to save resource profiles " + file + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package net.qyjohn.dewev3.worker;
+
+import java.io.File;
+import java.util.*;
+import org.dom4j.Element;
+import org.apache.log4j.Logger;
+
+/**
+ *
+ * Resource-aware admission of the jobs of the local worker. An executor asks
+ * for a slot before starting the command of a job, and gives it back once the
+ * command exits, so downloads and uploads go on without holding resources.
+ *
+ * A job needs cores, memory (MB) and scratch disk (MB). The needs come from
+ * the cores, memory and disk attributes of its descriptor (declared in
+ * long.xml), else from the ResourceProfiles learned from earlier runs, else
+ * one core and nothing else. Needs larger than the worker are cut down to
+ * the worker. The cores and memory of the worker come back when a job ends;
+ * the free disk is read from the temp folder, less the disk of the running
+ * jobs, since their outputs stay.
+ *
+ * The waiting jobs are admitted by priority. When the first of them does not
+ * fit, it gets a reservation at the time enough running jobs are expected to
+ * have ended (from the learned run times), and with backfill the jobs behind
+ * it are admitted if they fit now and either end before that time or leave
+ * enough for the reserved job at that time (EASY backfilling).
+ *
+ */
+
+public class ResourceSlots
+{
+	public final static int CORES = 0, MEMORY = 1, DISK = 2;
+
+	long[] capacity, free;
+	File disk;
+	boolean backfill;
+	ResourceProfiles profiles;
+	long sequence = 0;
+	TreeSet<Request> waiting = new TreeSet<Request>();
+	List<Request> running = new ArrayList<Request>();
+	final static Logger logger = Logger.getLogger(ResourceSlots.class);
+
+	/**
+	 *
+	 * A job waiting for, or holding, a slot
+	 *
+	 */
+
+	public class Request implements Comparable<Request>
+	{
+		public String name;
+		public long[] need;
+		float priority;
+		long sequence, start;
+		double runtime;	// expected, in seconds, -1 when unknown
+		boolean admitted;
+
+		public int compareTo(Request other)
+		{
+			int c = Float.compare(other.priority, priority);
+			return (c != 0) ? c : Long.compare(sequence, other.sequence);
+		}
+
+		long end()
+		{
+			return (runtime < 0) ? Long.MAX_VALUE : start + (long) (runtime * 1000);
+		}
+	}
+
+
+	/**
+	 *
+	 * A worker with the given cores and memory (MB, 0 when memory is not
+	 * limited), writing to the disk holding the temp folder.
+	 *
+	 */
+
+	public ResourceSlots(long cores, long memory, File disk, boolean backfill, ResourceProfiles profiles)
+	{
+		this.capacity = new long[] {cores, (memory > 0) ? memory : Long.MAX_VALUE, Long.MAX_VALUE};
+		this.free = capacity.clone();
+		this.disk = disk;
+		this.backfill = backfill;
+		this.profiles = profiles;
+		logger.info("Local resources: " + cores + " cores, " + ((memory > 0) ? memory + " MB" : "unlimited") + " memory.");
+	}
+
+
+	/**
+	 *
+	 * Wait for the resources of a job.
+	 *
+	 */
+
+	public Request acquire(Element job) throws InterruptedException
+	{
+		Request r = new Request();
+		r.name = job.attributeValue("name");
+		r.priority = priority(job);
+		double[] profile = profiles.get(r.name);
+		r.runtime = (profile == null) ? -1 : profile[ResourceProfiles.RUNTIME];
+		r.need = new long[3];
+		r.need[CORES]  = need(job, "cores",  profile, ResourceProfiles.CORES,  1);
+		r.need[MEMORY] = need(job, "memory", profile, ResourceProfiles.MEMORY, 0);
+		r.need[DISK]   = need(job, "disk",   profile, ResourceProfiles.DISK,   0);
+
+		synchronized (this)
+		{
+			r.sequence = sequence++;
+			waiting.add(r);
+			schedule();
+			try
+			{
+				while (!r.admitted)
+				{
+					wait();
+				}
+			} catch (InterruptedException e)
+			{
+				if (!waiting.remove(r))
+				{
+					release(r);
+				}
+				throw e;
+			}
+		}
+		return r;
+	}
+
+	/**
+	 *
+	 * The priority of a job, or of its chain for the jobs of a fused chain
+	 *
+	 */
+
+	static float priority(Element job)
+	{
+		String priority = job.attributeValue("priority");
+		if ((priority == null) && (job.getParent() != null))
+		{
+			priority = job.getParent().attributeValue("priority");
+		}
+		try
+		{
+			return (priority == null) ? 0 : Float.parseFloat(priority);
+		} catch (Exception e)
+		{
+			return 0;
+		}
+	}
+
+	long need(Element job, String attribute, double[] profile, int index, long defaultNeed)
+	{
+		long need = defaultNeed;
+		String declared = job.attributeValue(attribute);
+		if (declared != null)
+		{
+			need = Long.parseLong(declared);
+		}
+		else if ((profile != null) && (profile[index] >= 0))
+		{
+			need = (long) Math.ceil(profile[index]);
+		}
+		if (index == CORES)
+		{
+			need = Math.max(1, need);
+		}
+		return need;
+	}
+
+
+	/**
+	 *
+	 * Give back the resources of a job, and admit the jobs that now fit.
+	 *
+	 */
+
+	public synchronized void release(Request r)
+	{
+		if (running.remove(r))
+		{
+			free[CORES]  += r.need[CORES];
+			free[MEMORY] += r.need[MEMORY];
+			schedule();
+		}
+	}
+
+
+	/**
+	 *
+	 * Admit the waiting jobs that fit, in priority order, backfilling around
+	 * the first job that does not fit.
+	 *
+	 */
+
+	void schedule()
+	{
+		long now = System.currentTimeMillis();
+		updateDisk();
+		Request reserved = null;
+		long shadow = Long.MAX_VALUE;
+		long[] extra = null;
+		for (Iterator<Request> i = waiting.iterator(); i.hasNext(); )
+		{
+			Request r = i.next();
+			long[] need = clamp(r.need);
+			if (reserved == null)
+			{
+				if (fits(need, free))
+				{
+					i.remove();
+					admit(r, need, now);
+				}
+				else
+				{
+					reserved = r;
+					if (!backfill)
+					{
+						break;
+					}
+
+					// The time the reserved job fits, and what it leaves at that time
+					List<Request> ending = new ArrayList<Request>(running);
+					Collections.sort(ending, new Comparator<Request>()
+					{
+						public int compare(Request a, Request b)
+						{
+							return Long.compare(a.end(), b.end());
+						}
+					});
+					long[] available = free.clone();
+					for (Request e : ending)
+					{
+						if (fits(need, available))
+						{
+							break;
+						}
+						available[CORES]  += e.need[CORES];
+						available[MEMORY] += e.need[MEMORY];
+						shadow = e.end();
+					}
+					extra = new long[] {available[CORES] - need[CORES], available[MEMORY] - need[MEMORY], available[DISK] - need[DISK]};
+				}
+			}
+			else if (fits(need, free))
+			{
+				boolean endsBefore = (shadow != Long.MAX_VALUE) && (r.runtime >= 0) && (now + (long) (r.runtime * 1000) <= shadow);
+				if (endsBefore)
+				{
+					i.remove();
+					admit(r, need, now);
+				}
+				else if (fits(need, extra))
+				{
+					i.remove();
+					admit(r, need, now);
+					for (int k = 0; k < extra.length; k++)
+					{
+						extra[k] -= need[k];
+					}
+				}
+			}
+		}
+	}
+
+	void admit(Request r, long[] need, long now)
+	{
+		r.need = need;
+		r.start = now;
+		r.admitted = true;
+		for (int k = 0; k < free.length; k++)
+		{
+			free[k] -= need[k];
+		}
+		running.add(r);
+		logger.debug("Admitted " + r.name + " with " + need[CORES] + " cores, " + need[MEMORY] + " MB memory, " + need[DISK] + " MB disk");
+		notifyAll();
+	}
+
+	/**
+	 *
+	 * The free disk: what the file system has left, less what the running jobs are about to write
+	 *
+	 */
+
+	void updateDisk()
+	{
+		if (disk == null)
+		{
+			return;
+		}
+		long reserved = 0;
+		for (Request r : running)
+		{
+			reserved += r.need[DISK];
+		}
+		free[DISK] = disk.getUsableSpace() / (1024 * 1024) - reserved;
+		capacity[DISK] = Math.max(0, free[DISK] + reserved);
+	}
+
+	long[] clamp(long[] need)
+	{
+		long[] clamped = new long[need.length];
+		for (int k = 0; k < need.length; k++)
+		{
+			clamped[k] = Math.min(need[k], capacity[k]);
+		}
+		return clamped;
+	}
+
+	static boolean fits(long[] need, long[] available)
+	{
+		for (int k = 0; k < need.length; k++)
+		{
+			if (need[k] > available[k])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}